@@ -1,5 +1,7 @@
 package bigdatacourse.hw2;
 
+import java.time.Instant;
+
 public interface HW2API {
 
 	// connects to AstraDB
@@ -17,9 +19,30 @@ public interface HW2API {
 	// loads the items in the file into the db
 	public void loadItems(String pathItemsFile) throws Exception;
 	
+	// loads the items, if resume is set continues from the checkpoint of an interrupted load
+	public void loadItems(String pathItemsFile, boolean resume) throws Exception;
+	
 	// loads the reviews into the db
 	public void loadReviews(String pathReviewsFile) throws Exception;
 	
+	// loads the reviews, if resume is set continues from the checkpoint of an interrupted load
+	public void loadReviews(String pathReviewsFile, boolean resume) throws Exception;
+	
+	// loads every items file of a directory (meta_*.json[.gz]) or matching a glob, several files at a time
+	public void loadItemsFiles(String pathItemsFiles, boolean resume) throws Exception;
+	
+	// loads every reviews file of a directory (reviews_*.json[.gz]) or matching a glob, several files at a time
+	public void loadReviewsFiles(String pathReviewsFiles, boolean resume) throws Exception;
+	
+	// loads the items and the reviews at the same time, sharing one write budget
+	public void loadAll(String pathItemsFile, String pathReviewsFile, boolean resume) throws Exception;
+	
+	// writes the reviews sorted by reviewerID into pathSortedFile, to be loaded with loadReviewsSorted
+	public void sortReviews(String pathReviewsFile, String pathSortedFile) throws Exception;
+	
+	// loads reviews_by_user from the output of sortReviews and reviews_by_item from the original file
+	public void loadReviewsSorted(String pathReviewsFile, String pathSortedFile, boolean resume) throws Exception;
+	
 	// returns the item's details. the categories should be ordered 
 	public String item(String asin);
 
@@ -28,4 +51,16 @@ public interface HW2API {
 	
 	// returns the items's reviews, ordered by review time (desc) and then by the reviewerID
 	public Iterable<String> itemReviews(String asin);
+	
+	// returns the user's latest limit reviews, in the same order
+	public Iterable<String> userReviews(String reviewerID, int limit);
+	
+	// returns the item's latest limit reviews, in the same order
+	public Iterable<String> itemReviews(String asin, int limit);
+	
+	// returns the user's reviews written in [from, to), in the same order
+	public Iterable<String> userReviews(String reviewerID, Instant from, Instant to);
+	
+	// returns the item's reviews written in [from, to), in the same order
+	public Iterable<String> itemReviews(String asin, Instant from, Instant to);
 }
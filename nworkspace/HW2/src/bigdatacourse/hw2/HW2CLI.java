@@ -2,6 +2,9 @@ package bigdatacourse.hw2;
 
 import java.io.File;
 import java.io.FileReader;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.Scanner;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -19,6 +22,9 @@ public class HW2CLI {
 	
 	private static final String				FILE_DATASET_ITEMS		=	"meta_Office_Products.json";
 	private static final String				FILE_DATASET_REVIEWS	=	"reviews_Office_Products.json";
+	private static final String				FILE_SORTED_REVIEWS		=	"reviews_Office_Products.by_reviewerID.json";
+
+	private static final String				GZIP_SUFFIX				=	".gz";
 
 	private static final String				FILE_SEPARATOR			=	System.getProperty("file.separator");
 	
@@ -71,21 +77,56 @@ public class HW2CLI {
 					}							
 					case "createTables":		hw2API.createTables();			break;
 					case "initialize":			hw2API.initialize();			break;
-					case "loadItems":			hw2API.loadItems(pathDatasetFolder + FILE_DATASET_ITEMS);		break;
-					case "loadReviews":			hw2API.loadReviews(pathDatasetFolder + FILE_DATASET_REVIEWS);	break;
+					case "loadItems": {
+						// a directory or glob argument loads many category files instead of the office products
+						String files = filesArgument(tokens);
+						if (files != null)
+							hw2API.loadItemsFiles(files, isResume(tokens));
+						else
+							hw2API.loadItems(datasetFile(pathDatasetFolder, FILE_DATASET_ITEMS), isResume(tokens));
+						break;
+					}
+					case "loadReviews": {
+						String files = filesArgument(tokens);
+						if (files != null) {
+							hw2API.loadReviewsFiles(files, isResume(tokens));
+							break;
+						}
+						// --sorted loads the reviews by user from the output of sortReviews
+						if (hasFlag(tokens, "--sorted"))
+							hw2API.loadReviewsSorted(datasetFile(pathDatasetFolder, FILE_DATASET_REVIEWS), pathDatasetFolder + FILE_SORTED_REVIEWS, isResume(tokens));
+						else
+							hw2API.loadReviews(datasetFile(pathDatasetFolder, FILE_DATASET_REVIEWS), isResume(tokens));
+						break;
+					}
+					case "loadAll":				hw2API.loadAll(datasetFile(pathDatasetFolder, FILE_DATASET_ITEMS), datasetFile(pathDatasetFolder, FILE_DATASET_REVIEWS), isResume(tokens));	break;
+					case "sortReviews":			hw2API.sortReviews(datasetFile(pathDatasetFolder, FILE_DATASET_REVIEWS), pathDatasetFolder + FILE_SORTED_REVIEWS);	break;
 					case "item": {			
 						String itemReper = hw2API.item(tokens[1]);											
 						System.out.print(itemReper);
 						break;
 					}
 					case "userReviews": {
-						Iterable<String> reviewsRepr = hw2API.userReviews(tokens[1]);
+						// an optional second argument asks for the latest n reviews only, two for a time range
+						Iterable<String> reviewsRepr;
+						if (tokens.length > 3)
+							reviewsRepr = hw2API.userReviews(tokens[1], parseTime(tokens[2]), parseTime(tokens[3]));
+						else if (tokens.length > 2)
+							reviewsRepr = hw2API.userReviews(tokens[1], Integer.parseInt(tokens[2]));
+						else
+							reviewsRepr = hw2API.userReviews(tokens[1]);
 						for (String reviewRepr : reviewsRepr)
 							System.out.print(reviewRepr);
 						break;
 					}
 					case "itemReviews": {
-						Iterable<String> reviewsReper = hw2API.itemReviews(tokens[1]);	
+						Iterable<String> reviewsReper;
+						if (tokens.length > 3)
+							reviewsReper = hw2API.itemReviews(tokens[1], parseTime(tokens[2]), parseTime(tokens[3]));
+						else if (tokens.length > 2)
+							reviewsReper = hw2API.itemReviews(tokens[1], Integer.parseInt(tokens[2]));
+						else
+							reviewsReper = hw2API.itemReviews(tokens[1]);
 						for (String reviewRepr : reviewsReper)
 							System.out.print(reviewRepr);
 						break;
@@ -121,9 +162,16 @@ public class HW2CLI {
 		System.out.println("initialize\t\t initialize the logic (prepared statements)");
 		System.out.println("loadItems\t\t prase and lode the items");
 		System.out.println("loadReviews\t\t prase and lode the reviews");
+		System.out.println("loadAll\t\t\t load the items and the reviews together");
+		System.out.println("load* <dir|glob>\t load every category file in a directory / matching a glob");
+		System.out.println("load* --resume\t\t continue an interrupted load from its checkpoint");
+		System.out.println("sortReviews\t\t sort the reviews by reviewerID (external sort)");
+		System.out.println("loadReviews --sorted\t load the reviews by user from the sorted file");
 		System.out.println("item * \t\t \t print the info for item *");
 		System.out.println("userReviews *\t\t print the reviews for user *");
 		System.out.println("itemReviews *\t\t print the reviews for item *");
+		System.out.println("*Reviews * n\t\t print only the latest n reviews");
+		System.out.println("*Reviews * from to\t print the reviews in [from, to), e.g. 2013-01-01 2013-02-01");
 		System.out.println("help    \t\t print available commands");
 		System.out.println("exit    \t\t exit the CLI");
 		System.out.println("-------------------------------------------------------------");
@@ -144,9 +192,9 @@ public class HW2CLI {
 		validateFileExists(pathAstraDBFolder, FILE_ASTRA_DB);
 		validateFileExists(pathAstraDBFolder, FILE_LOGIN_TOKEN);
 		
-		// validating files for dataset
-		validateFileExists(pathDatasetFolder, FILE_DATASET_ITEMS);
-		validateFileExists(pathDatasetFolder, FILE_DATASET_REVIEWS);
+		// validating files for dataset (plain or gzip compressed)
+		validateFileExists(pathDatasetFolder, datasetFileName(pathDatasetFolder, FILE_DATASET_ITEMS));
+		validateFileExists(pathDatasetFolder, datasetFileName(pathDatasetFolder, FILE_DATASET_REVIEWS));
 		
 		// saving
 		this.pathAstraDBFolder	=	pathAstraDBFolder;
@@ -154,6 +202,45 @@ public class HW2CLI {
 	}
 	
 	
+	// the dataset file as is, or its .gz if only the compressed one is there
+	private static String datasetFileName(String path, String filename) {
+		if (new File(path + filename).exists() == false && new File(path + filename + GZIP_SUFFIX).exists())
+			return filename + GZIP_SUFFIX;
+		return filename;
+	}
+	
+	private static String datasetFile(String path, String filename) {
+		return path + datasetFileName(path, filename);
+	}
+	
+	private static boolean isResume(String[] tokens) {
+		return hasFlag(tokens, "--resume");
+	}
+	
+	// the first argument that isn't a --flag, relative to the dataset folder unless absolute
+	private String filesArgument(String[] tokens) {
+		for (int i = 1; i < tokens.length; i++) {
+			if (tokens[i].isEmpty() || tokens[i].startsWith("--"))
+				continue;
+			return new File(tokens[i]).isAbsolute() ? tokens[i] : pathDatasetFolder + tokens[i];
+		}
+		return null;
+	}
+	
+	// a date (midnight UTC) or an instant, e.g. 2013-01-01 or 2013-01-01T12:00:00Z
+	private static Instant parseTime(String token) {
+		if (token.contains("T"))
+			return Instant.parse(token);
+		return LocalDate.parse(token).atStartOfDay(ZoneOffset.UTC).toInstant();
+	}
+	
+	private static boolean hasFlag(String[] tokens, String flag) {
+		for (int i = 1; i < tokens.length; i++)
+			if (tokens[i].equals(flag))
+				return true;
+		return false;
+	}
+	
 	private static void validateFileExists(String path, String filename) throws Exception {
 		if (new File(path + filename).exists() == false)
 			throw new Exception("ERROR - can not find file " + path + filename);
@@ -0,0 +1,105 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+// gunzips a file on its own thread and hands the inflated bytes over in chunks through a bounded
+// queue, so decompression overlaps with the line splitting and parsing done by the reading thread
+// and never runs more than queueSize chunks ahead of it
+public class BackgroundGunzipStream extends InputStream {
+
+	private static final byte[]			END	= new byte[0];
+
+	private final BlockingQueue<byte[]>	queue;
+	private final Thread				inflater;
+	private volatile IOException		error;
+
+	private byte[]						current	= new byte[0];
+	private int							pos;
+	private boolean						ended;
+
+	public BackgroundGunzipStream(String path, int queueSize, int chunkSize) {
+		this.queue		= new ArrayBlockingQueue<>(queueSize);
+		this.inflater	= new Thread(() -> inflate(path, chunkSize), "gunzip");
+		inflater.setDaemon(true);
+		inflater.start();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill())
+			return -1;
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!fill())
+			return -1;
+
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() {
+		inflater.interrupt();
+	}
+
+	// false at the end of the file
+	private boolean fill() throws IOException {
+		while (pos == current.length) {
+			if (ended)
+				return false;
+			try {
+				current = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			pos = 0;
+			if (current == END) {
+				ended = true;
+				if (error != null)
+					throw error;
+			}
+		}
+		return true;
+	}
+
+	private void inflate(String path, int chunkSize) {
+		try (InputStream in = new GZIPInputStream(new FileInputStream(path), 64 * 1024)) {
+			while (true) {
+				byte[] chunk	= new byte[chunkSize];
+				int n			= in.readNBytes(chunk, 0, chunkSize);
+				if (n <= 0)
+					break;
+				if (n < chunkSize) {
+					byte[] last = new byte[n];
+					System.arraycopy(chunk, 0, last, 0, n);
+					chunk = last;
+				}
+				queue.put(chunk);
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			return;		// the reader closed the stream
+		}
+
+		try {
+			queue.put(END);
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+// tracks which lines of a sequentially read dataset were fully acknowledged by cassandra
+// and periodically saves the low watermark - the offset before which every record is stored -
+// into <dataset>.checkpoint, so an interrupted load can continue from there
+public final class Checkpoint {
+
+	private static final String	SUFFIX	= ".checkpoint";
+
+	private final Path							dataset;
+	private final Path							file;
+	private final long							size;
+	private final ConcurrentSkipListSet<Long>	inFlight	= new ConcurrentSkipListSet<>();
+	private final ScheduledExecutorService		saver;
+	private volatile long						readPosition;
+
+	// saves into <pathProgress>.checkpoint: pathProgress is the dataset itself, or one of its ranges in a leased load
+	public Checkpoint(String pathDataset, String pathProgress, long from, long intervalMillis) throws IOException {
+		this.dataset		= Paths.get(pathDataset);
+		this.file			= checkpointFile(pathProgress);
+		this.size			= Files.size(dataset);
+		this.readPosition	= from;
+
+		this.saver = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "checkpoint");
+			t.setDaemon(true);
+			return t;
+		});
+		saver.scheduleWithFixedDelay(this::saveQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// offset saved by a previous load of this dataset, 0 if there is none
+	public static long resumeOffset(String pathDataset) throws IOException {
+		return resumeOffset(pathDataset, pathDataset);
+	}
+
+	public static long resumeOffset(String pathDataset, String pathProgress) throws IOException {
+		Path file = checkpointFile(pathProgress);
+		if (!Files.exists(file))
+			return 0;
+
+		JSONObject json = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+		if (json.getLong("size") != Files.size(Paths.get(pathDataset)))
+			throw new IOException("ERROR - " + file + " was written for a different version of " + pathDataset);
+		return json.getLong("offset");
+	}
+
+	// the checkpoint a load resumed from without keeping one itself (a parallel reader), once it completed
+	public static void delete(String pathProgress) throws IOException {
+		Files.deleteIfExists(checkpointFile(pathProgress));
+	}
+
+	// called by the reader, in file order
+	public void begin(long start, long end) {
+		inFlight.add(start);
+		readPosition = end;
+	}
+
+	// called once every write of the record starting at start succeeded
+	public void done(long start) {
+		inFlight.remove(start);
+	}
+
+	public long watermark() {
+		// read the position first: any record before it was added to inFlight before it was set
+		long position = readPosition;
+		Long oldest = inFlight.isEmpty() ? null : inFlight.first();
+		return oldest != null && oldest < position ? oldest : position;
+	}
+
+	// complete: every record made it, nothing left to resume
+	public void finish(boolean complete) throws IOException {
+		saver.shutdownNow();
+		if (complete)
+			Files.deleteIfExists(file);
+		else
+			save();
+	}
+
+	private synchronized void save() throws IOException {
+		JSONObject json = new JSONObject();
+		json.put("file", dataset.getFileName().toString());
+		json.put("size", size);
+		json.put("offset", watermark());
+
+		// write aside and rename, so a crash never leaves a half written checkpoint
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.writeString(tmp, json.toString(), StandardCharsets.UTF_8);
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void saveQuietly() {
+		try {
+			save();
+		} catch (IOException e) {
+			System.out.println("Saving checkpoint failed: " + e.getMessage());
+		}
+	}
+
+	private static Path checkpointFile(String pathProgress) {
+		return Paths.get(pathProgress + SUFFIX);
+	}
+}
@@ -0,0 +1,118 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// reads an NDJSON file in parallel: the file is split into byte ranges that start right
+// after a '\n', every range is memory mapped and scanned by its own thread, so reading,
+// utf-8 decoding and whatever the handler does (json parsing) scale with the cores
+public class ChunkedFileReader {
+
+	// a single mapping can't exceed 2GB
+	private static final long	MAX_CHUNK_SIZE	= 1L << 30;
+
+	private final Path			path;
+	private final long			from;
+	private final long			until;
+	private final int			threads;
+
+	// reads [from, until): from must be the start of a line, e.g. a checkpoint offset, and until too
+	public ChunkedFileReader(Path path, long from, long until, int threads) {
+		this.path		= path;
+		this.from		= from;
+		this.until		= until;
+		this.threads	= threads;
+	}
+
+	public void read(LineHandler handler) throws Exception {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			List<long[]> chunks = split(channel);
+
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<?>> futures = new ArrayList<>();
+				for (long[] chunk : chunks)
+					futures.add(executor.submit(() -> {
+						readChunk(channel, chunk[0], chunk[1], handler);
+						return null;
+					}));
+
+				for (Future<?> future : futures)
+					future.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				throw e;
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	// [start, end) ranges, each one begins at the start of a line
+	private List<long[]> split(FileChannel channel) throws IOException {
+		long size		= Math.min(channel.size(), until);
+		long chunkSize	= Math.max(1, Math.min(MAX_CHUNK_SIZE, (size - from + threads - 1) / threads));
+
+		List<long[]> chunks = new ArrayList<>();
+		long start = from;
+		while (start < size) {
+			long end = Math.min(size, start + chunkSize);
+			if (end < size)
+				end = nextLineStart(channel, end);
+			chunks.add(new long[] { start, end });
+			start = end;
+		}
+		return chunks;
+	}
+
+	// position just after the first '\n' at or after pos
+	static long nextLineStart(FileChannel channel, long pos) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		while (true) {
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if (n <= 0)
+				return channel.size();
+			for (int i = 0; i < n; i++) {
+				if (buf.get(i) == '\n')
+					return pos + i + 1;
+			}
+			pos += n;
+		}
+	}
+
+	private static void readChunk(FileChannel channel, long start, long end, LineHandler handler) throws Exception {
+		MappedByteBuffer buf	= channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		int limit				= buf.limit();
+		byte[] bytes			= new byte[8 * 1024];
+
+		int lineStart = 0;
+		for (int i = 0; i <= limit; i++) {
+			if (i < limit && buf.get(i) != '\n')
+				continue;
+
+			int length = i - lineStart;
+			if (length > 0 && buf.get(lineStart + length - 1) == '\r')
+				length--;
+			if (length > 0) {
+				if (bytes.length < length)
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				buf.get(lineStart, bytes, 0, length);
+				handler.accept(new String(bytes, 0, length, StandardCharsets.UTF_8), start + lineStart, start + Math.min(i + 1, limit));
+			}
+			lineStart = i + 1;
+		}
+	}
+}
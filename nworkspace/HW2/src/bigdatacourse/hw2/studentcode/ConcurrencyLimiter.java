@@ -0,0 +1,269 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.datastax.oss.driver.api.core.AllNodesFailedException;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.NoNodeAvailableException;
+import com.datastax.oss.driver.api.core.RequestThrottlingException;
+import com.datastax.oss.driver.api.core.connection.BusyConnectionException;
+import com.datastax.oss.driver.api.core.servererrors.OverloadedException;
+import com.datastax.oss.driver.api.core.servererrors.ReadTimeoutException;
+import com.datastax.oss.driver.api.core.servererrors.UnavailableException;
+import com.datastax.oss.driver.api.core.servererrors.WriteTimeoutException;
+
+// limits the writes in flight. in adaptive mode the limit follows what the cluster can take (AIMD):
+// once per interval it grows by a constant step if the p99 latency stayed under the target without errors,
+// and it is cut by a factor (at most once per interval) as soon as a write times out or is rejected as overload.
+// several loads can share one limit through weighted lanes, see lane().
+// waits on a ReentrantLock, not a monitor: a virtual thread blocked in wait() pins its carrier on JDK 21
+public class ConcurrencyLimiter implements WritePermits {
+
+	private final boolean	adaptive;
+	private final int		minLimit;
+	private final int		maxLimit;
+	private final int		increase;
+	private final double	decrease;
+	private final long		targetNanos;
+	private final long		intervalNanos;
+
+	private final Recorder		latencies	= new Recorder(3);
+	private final List<Lane>	lanes		= new ArrayList<>();
+	private final ReentrantLock	lock		= new ReentrantLock();
+	private final Condition		available	= lock.newCondition();
+
+	private int				limit;
+	private int				inFlight;
+	private long			intervalErrors;
+	private long			lastAdjust		= System.nanoTime();
+	private long			lastDecrease	= lastAdjust;
+	private volatile long	lastP99Nanos;
+
+	private ConcurrencyLimiter(boolean adaptive, int initial, int minLimit, int maxLimit, int increase, double decrease,
+			long targetMillis, long intervalMillis) {
+		this.adaptive		= adaptive;
+		this.limit			= initial;
+		this.minLimit		= minLimit;
+		this.maxLimit		= maxLimit;
+		this.increase		= increase;
+		this.decrease		= decrease;
+		this.targetNanos	= TimeUnit.MILLISECONDS.toNanos(targetMillis);
+		this.intervalNanos	= TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+	}
+
+	public static ConcurrencyLimiter fixed(int limit) {
+		return new ConcurrencyLimiter(false, limit, limit, limit, 0, 1, 0, 0);
+	}
+
+	public static ConcurrencyLimiter adaptive(int initial, int minLimit, int maxLimit, int increase, double decrease,
+			long targetP99Millis, long intervalMillis) {
+		return new ConcurrencyLimiter(true, initial, minLimit, maxLimit, increase, decrease, targetP99Millis, intervalMillis);
+	}
+
+	// a weighted share of this limit for one of several loads running at once. while more than one
+	// lane is waiting for permits, each one gets at most limit * weight / (weights of the busy lanes);
+	// a lane alone may use the whole limit, so nothing is left idle
+	public Lane lane(int weight) {
+		lock.lock();
+		try {
+			Lane lane = new Lane(weight);
+			lanes.add(lane);
+			return lane;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void acquire() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (inFlight >= limit)
+				available.await();
+			inFlight++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void release(long latencyNanos, Throwable error) {
+		if (adaptive && error == null)
+			latencies.recordValue(latencyNanos);
+
+		lock.lock();
+		try {
+			inFlight--;
+			if (adaptive)
+				adjust(error);
+			// with lanes a waiter may be blocked by its share, not by the limit, so wake them all
+			if (lanes.isEmpty())
+				available.signal();
+			else
+				available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int limit() {
+		lock.lock();
+		try {
+			return limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int inFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long lastP99Nanos() {
+		return lastP99Nanos;
+	}
+
+	// called with the lock held
+	private boolean withinShare(Lane lane) {
+		int busyWeight			= 0;
+		boolean othersWaiting	= false;
+		for (Lane l : lanes) {
+			if (l.waiting > 0 || l.inFlight > 0)
+				busyWeight += l.weight;
+			if (l != lane && l.waiting > 0)
+				othersWaiting = true;
+		}
+		if (!othersWaiting)
+			return true;
+		return lane.inFlight < Math.max(1, (long) limit * lane.weight / busyWeight);
+	}
+
+	public class Lane implements WritePermits {
+
+		private final int	weight;
+		private int			inFlight;
+		private int			waiting;
+
+		private Lane(int weight) {
+			this.weight = weight;
+		}
+
+		@Override
+		public void acquire() throws InterruptedException {
+			lock.lockInterruptibly();
+			try {
+				waiting++;
+				try {
+					while (ConcurrencyLimiter.this.inFlight >= limit || !withinShare(this))
+						available.await();
+				} finally {
+					waiting--;
+				}
+				ConcurrencyLimiter.this.inFlight++;
+				inFlight++;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void release(long latencyNanos, Throwable error) {
+			lock.lock();
+			try {
+				inFlight--;
+			} finally {
+				lock.unlock();
+			}
+			ConcurrencyLimiter.this.release(latencyNanos, error);
+		}
+
+		// this lane's writes against the shared limit
+		@Override
+		public int inFlight() {
+			lock.lock();
+			try {
+				return inFlight;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int limit() {
+			return ConcurrencyLimiter.this.limit();
+		}
+
+		@Override
+		public long lastP99Nanos() {
+			return lastP99Nanos;
+		}
+	}
+
+	// called with the lock held
+	private void adjust(Throwable error) {
+		long now = System.nanoTime();
+
+		if (error != null) {
+			intervalErrors++;
+			if (isOverload(error) && now - lastDecrease >= intervalNanos) {
+				int old			= limit;
+				limit			= Math.max(minLimit, (int) (limit * decrease));
+				lastDecrease	= now;
+				System.out.println("write limit " + old + " -> " + limit + " after " + RetryPolicy.unwrap(error).getClass().getSimpleName());
+			}
+		}
+
+		if (now - lastAdjust < intervalNanos)
+			return;
+
+		Histogram interval	= latencies.getIntervalHistogram();
+		long count			= interval.getTotalCount();
+		lastP99Nanos		= interval.getValueAtPercentile(99);
+
+		// grow only if we are actually using the current limit and everything went well
+		boolean healthy = count > 0 && lastP99Nanos <= targetNanos && intervalErrors <= count / 1000;
+		if (healthy && inFlight >= limit / 2 && now - lastDecrease >= intervalNanos && limit < maxLimit) {
+			limit = Math.min(maxLimit, limit + increase);
+			available.signalAll();
+		}
+		intervalErrors	= 0;
+		lastAdjust		= now;
+	}
+
+	// errors that mean "slow down", as opposed to a bad statement. when every connection is busy (no
+	// stream id left) the driver skips the nodes and fails with a NoNodeAvailableException without errors
+	static boolean isOverload(Throwable error) {
+		error = RetryPolicy.unwrap(error);
+		if (error instanceof NoNodeAvailableException && ((NoNodeAvailableException) error).getAllErrors().isEmpty())
+			return true;
+		if (error instanceof AllNodesFailedException) {
+			for (List<Throwable> errors : ((AllNodesFailedException) error).getAllErrors().values())
+				for (Throwable e : errors)
+					if (isOverload(e))
+						return true;
+			return false;
+		}
+		return error instanceof DriverTimeoutException
+				|| error instanceof WriteTimeoutException
+				|| error instanceof ReadTimeoutException
+				|| error instanceof UnavailableException
+				|| error instanceof OverloadedException
+				|| error instanceof RequestThrottlingException
+				|| error instanceof BusyConnectionException;
+	}
+}
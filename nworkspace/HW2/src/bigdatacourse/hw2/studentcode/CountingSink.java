@@ -0,0 +1,70 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchableStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+// counts what would have been sent - requests, rows and bytes of values - and prints it at the end
+public class CountingSink implements WriteSink {
+
+	private static final CompletableFuture<Void>	DONE	= CompletableFuture.completedFuture(null);
+
+	private final LongAdder	requests	= new LongAdder();
+	private final LongAdder	rows		= new LongAdder();
+	private final LongAdder	bytes		= new LongAdder();
+
+	@Override
+	public CompletionStage<?> write(Statement<?> statement) {
+		requests.increment();
+		if (statement instanceof BatchStatement) {
+			for (BatchableStatement<?> inner : (BatchStatement) statement)
+				count(inner);
+		} else {
+			count(statement);
+		}
+		return DONE;
+	}
+
+	@Override
+	public void close() {
+		System.out.println(String.format("counting sink: %,d requests, %,d rows, %,.1fMB of values",
+				requests.sum(), rows.sum(), bytes.sum() / (1024.0 * 1024.0)));
+	}
+
+	private void count(Statement<?> statement) {
+		rows.increment();
+		bytes.add(valueBytes(statement));
+	}
+
+	// bytes of the bound values of a statement (of every statement of a batch), the payload of a request
+	// before it is framed and compressed
+	static long valueBytes(Statement<?> statement) {
+		long bytes = 0;
+		if (statement instanceof BatchStatement) {
+			for (BatchableStatement<?> inner : (BatchStatement) statement)
+				bytes += valueBytes(inner);
+		} else if (statement instanceof BoundStatement) {
+			BoundStatement bound = (BoundStatement) statement;
+			for (int i = 0; i < bound.size(); i++) {
+				ByteBuffer value = bound.getBytesUnsafe(i);
+				if (value != null)
+					bytes += value.remaining();
+			}
+		} else if (statement instanceof SimpleStatement) {
+			// not serialized yet, text length is close enough for the dataset's values
+			List<Object> values = ((SimpleStatement) statement).getPositionalValues();
+			for (Object value : values)
+				if (value != null)
+					bytes += String.valueOf(value).length();
+		}
+		return bytes;
+	}
+}
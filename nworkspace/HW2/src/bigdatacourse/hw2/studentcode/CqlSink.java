@@ -0,0 +1,74 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.codahale.metrics.Meter;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.metrics.DefaultSessionMetric;
+
+// the real thing: executes the statements on the cassandra session. it also compares the bytes
+// of values it sent with the bytes that actually went over the wire (the session's bytes-sent
+// metric, after protocol framing and compression), see wireReport()
+public class CqlSink implements WriteSink {
+
+	private final CqlSession	session;
+	private final LongAdder		requests	= new LongAdder();
+	private final LongAdder		valueBytes	= new LongAdder();
+	private final long			sentBefore;
+	private final long			receivedBefore;
+
+	public CqlSink(CqlSession session) {
+		if (session == null)
+			throw new IllegalStateException("ERROR - not connected, connect first or pick another -Dhw2.load.sink");
+		this.session		= session;
+		this.sentBefore		= metric(DefaultSessionMetric.BYTES_SENT);
+		this.receivedBefore	= metric(DefaultSessionMetric.BYTES_RECEIVED);
+	}
+
+	@Override
+	public CompletionStage<?> write(Statement<?> statement) {
+		requests.increment();
+		valueBytes.add(CountingSink.valueBytes(statement));
+		try {
+			return session.executeAsync(statement);
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	// values vs wire bytes since the sink was created. the metrics are per session, so they include
+	// whatever else runs on it meanwhile (e.g. another load of loadAll)
+	public String wireReport() {
+		long sent		= metric(DefaultSessionMetric.BYTES_SENT);
+		long received	= metric(DefaultSessionMetric.BYTES_RECEIVED);
+		String compression = session.getContext().getConfig().getDefaultProfile()
+				.getString(DefaultDriverOption.PROTOCOL_COMPRESSION, "none");
+		if (sent < 0)
+			return String.format("wire: %s of values, bytes on the wire unknown (session metrics disabled)", megabytes(valueBytes.sum()));
+		return String.format("wire: %s of values, %s sent (%.2fx), %s received, compression %s",
+				megabytes(valueBytes.sum()), megabytes(sent - sentBefore),
+				(sent - sentBefore) / (double) Math.max(1, valueBytes.sum()), megabytes(received - receivedBefore), compression);
+	}
+
+	@Override
+	public void close() {
+		System.out.println(String.format("cql sink: %,d requests, %s", requests.sum(), wireReport()));
+	}
+
+	// -1 if the metric isn't enabled
+	private long metric(DefaultSessionMetric metric) {
+		return session.getMetrics()
+				.flatMap(metrics -> metrics.getSessionMetric(metric))
+				.filter(Meter.class::isInstance)
+				.map(meter -> ((Meter) meter).getCount())
+				.orElse(-1L);
+	}
+
+	private static String megabytes(long bytes) {
+		return String.format("%,.1fMB", bytes / (1024.0 * 1024.0));
+	}
+}
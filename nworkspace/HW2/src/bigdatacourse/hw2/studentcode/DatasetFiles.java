@@ -0,0 +1,70 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// finds the dataset files of a multi-file load: a directory (every file in it whose name matches
+// the default pattern) or a path whose file name is a glob, e.g. /data/reviews_*.json.gz
+public final class DatasetFiles {
+
+	// what the loaders and sortReviews write next to a dataset, never a dataset itself. the sorted
+	// reviews match reviews_*.json too, loading them as well would write every review twice
+	private static final String[]	OUTPUTS	= { ".failed.json", ".checkpoint", ".tmp", ".by_reviewerID.json" };
+
+	private DatasetFiles() {
+	}
+
+	// biggest first: with a few files loading at a time the long ones start early and the small ones
+	// fill in around them, instead of one big file left alone at the end
+	public static List<String> find(String dirOrGlob, String defaultPattern) throws IOException {
+		Path path = Paths.get(dirOrGlob);
+		Path dir;
+		String pattern;
+		if (Files.isDirectory(path)) {
+			dir		= path;
+			pattern	= defaultPattern;
+		} else {
+			dir		= path.getParent() != null ? path.getParent() : Paths.get(".");
+			pattern	= path.getFileName().toString();
+		}
+
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		List<Path> files = new ArrayList<>();
+		try (Stream<Path> list = Files.list(dir)) {
+			list.filter(Files::isRegularFile)
+				.filter(file -> matcher.matches(file.getFileName()) && !isOutput(file.getFileName().toString()))
+				.forEach(files::add);
+		}
+		if (files.isEmpty())
+			throw new IOException("no dataset files match " + dirOrGlob);
+
+		files.sort(Comparator.comparingLong(DatasetFiles::size).reversed().thenComparing(Comparator.naturalOrder()));
+		List<String> paths = new ArrayList<>();
+		for (Path file : files)
+			paths.add(file.toString());
+		return paths;
+	}
+
+	private static boolean isOutput(String name) {
+		for (String suffix : OUTPUTS)
+			if (name.endsWith(suffix))
+				return true;
+		return false;
+	}
+
+	private static long size(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+}
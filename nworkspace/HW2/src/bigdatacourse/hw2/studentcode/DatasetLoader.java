@@ -0,0 +1,517 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+// one load of a dataset file: reads it with the configured reader, maps every line to the
+// statements that store it and writes them in the configured mode, see LoadOptions.
+// T is what a line is parsed into before its statements are bound
+public class DatasetLoader<T> {
+
+	// turns one line of the dataset into the statements that store it, in two steps
+	// so the pipeline mode can parse and bind on different threads
+	public interface StatementMapper<T> {
+		T parse(String line);
+
+		List<Statement<?>> bind(T record);
+
+		default List<Statement<?>> map(String line) {
+			return bind(parse(line));
+		}
+
+		static <T> StatementMapper<T> of(Function<String, T> parse, Function<T, List<Statement<?>>> bind) {
+			return new StatementMapper<T>() {
+				@Override
+				public T parse(String line) {
+					return parse.apply(line);
+				}
+
+				@Override
+				public List<Statement<?>> bind(T record) {
+					return bind.apply(record);
+				}
+			};
+		}
+	}
+
+	// what the async write path does with the head of its write stages
+	private interface Feeder {
+		void feed(WriteStage head) throws Exception;
+	}
+
+	// one line on its way through the pipeline stages
+	private static class Record<T> {
+		final String		line;
+		final long			start;
+		T					parsed;
+		List<Statement<?>>	statements;
+
+		Record(String line, long start) {
+			this.line	= line;
+			this.start	= start;
+		}
+	}
+
+	// the work of a parse / bind stage on one record
+	private interface Step<T> {
+		void apply(Record<T> record);
+	}
+
+	private final CqlSession			session;	// null when loading into an offline sink
+	private final String				name;
+	private final String				path;
+	private final StatementMapper<T>	mapper;
+	private final boolean				batched;
+
+	// set by share(), when this load runs next to others (loadAll)
+	private WritePermits			sharedPermits;
+	private WriteSink				sharedSink;
+
+	// state of the running load
+	private long					from;
+	private long					until;
+	private Checkpoint				checkpoint;
+	private FailureLog				failures;
+	private WritePermits			limiter;
+	private LoadReporter			reporter;
+	private WriteSink				sink;
+
+	// batched: group the bound statements into per-partition batches, see PartitionBatcher
+	public DatasetLoader(CqlSession session, String name, String path, StatementMapper<T> mapper, boolean batched) {
+		this.session	= session;
+		this.name		= name;
+		this.path		= path;
+		this.mapper		= mapper;
+		this.batched	= batched;
+	}
+
+	// write through the given permits (e.g. a lane of a shared limiter) and sink instead of
+	// creating them, the sink is left open for its owner
+	public DatasetLoader<T> share(WritePermits permits, WriteSink sink) {
+		this.sharedPermits	= permits;
+		this.sharedSink		= sink;
+		return this;
+	}
+
+	public void load(boolean resume) throws Exception {
+		// one of several workers loading the file together, see LeasedLoad. the ranges this worker
+		// gets are written through one sink and limiter, unless the load shares them already
+		if (LoadOptions.leased()) {
+			boolean own = sharedSink == null;
+			if (own)
+				share(LoadOptions.paced(LoadOptions.limiter(), LoadOptions.rateLimit(), false), LoadOptions.sink(session));
+			try {
+				LoadOptions.leasedLoad(this, path).run();
+			} finally {
+				if (own) {
+					sharedSink.close();
+					share(null, null);
+				}
+			}
+			return;
+		}
+		
+		long from = resume ? Checkpoint.resumeOffset(path) : 0;
+		if (from > 0)
+			System.out.println("Resuming " + path + " from byte " + from);
+		run(name, from, Long.MAX_VALUE, path, from > 0);
+	}
+	
+	// loads only the lines starting in [start, until), both line starts. the range has its own
+	// <pathProgress>.checkpoint to continue from and <pathProgress>.failed.json.
+	// returns true if every line of the range was read and either written or dead-lettered
+	public boolean loadRange(long start, long until, String pathProgress) throws Exception {
+		long from = Math.max(start, Checkpoint.resumeOffset(path, pathProgress));
+		if (from > start)
+			System.out.println("Resuming " + path + " range " + start + "-" + until + " from byte " + from);
+		return run(name + " " + Paths.get(pathProgress).getFileName(), from, until, pathProgress, true);
+	}
+	
+	// pathProgress names the checkpoint and dead-letter files, append keeps the failures of an earlier run
+	private boolean run(String label, long from, long until, String pathProgress, boolean append) throws Exception {
+		this.from	= from;
+		this.until	= until;
+		sink = sharedSink != null ? sharedSink : LoadOptions.sink(session);
+		
+		// a low watermark needs the lines in file order, so only the sequential readers save checkpoints
+		checkpoint = !isSequential() ? null : new Checkpoint(path, pathProgress, from, LoadOptions.checkpointMillis());
+		
+		// records that can't be stored end up in <dataset>.failed.json instead of being dropped
+		failures	= new FailureLog(pathProgress, append);
+		limiter		= sharedPermits != null ? sharedPermits : LoadOptions.paced(LoadOptions.limiter(), LoadOptions.rateLimit(), false);
+		// offsets in a .gz are in the inflated data, its size isn't known up front
+		long size	= isGzip() ? 0 : Math.min(Files.size(Paths.get(path)), until) - from;
+		reporter	= new LoadReporter(label, size, limiter, LoadOptions.reportMillis());
+		if (limiter instanceof PacedPermits)
+			reporter.watch(((PacedPermits) limiter)::report);
+		if (sink instanceof CqlSink)
+			reporter.watch(((CqlSink) sink)::wireReport);
+		
+		boolean complete = false;
+		try {
+			switch (LoadOptions.mode()) {
+				case THREADS:	complete = loadBlocking(Executors.newFixedThreadPool(LoadOptions.threads()));	break;
+				case VIRTUAL:	complete = loadBlocking(Executors.newVirtualThreadPerTaskExecutor());			break;
+				case ASYNC:		complete = loadAsync();															break;
+				case PIPELINE:	complete = loadPipeline();														break;
+			}
+		} finally {
+			if (sharedSink == null)
+				sink.close();
+			reporter.close();
+			// dead-lettered records count as handled, keep the checkpoint only if the reading stopped early.
+			// the parallel readers don't save one, but the load may have resumed from an older one
+			if (checkpoint != null)
+				checkpoint.finish(complete);
+			else if (complete)
+				Checkpoint.delete(pathProgress);
+			failures.close();
+			reporter.printSummary();
+			if (limiter instanceof PacedPermits)
+				System.out.println(label + ": " + ((PacedPermits) limiter).summary());
+			failures.printSummary();
+		}
+		return complete;
+	}
+	
+	// returns true if every line was read and either written or dead-lettered
+	private boolean loadAsync() throws Exception {
+		// the reader thread(s) parse and submit, the window keeps the limiter's worth of requests on the wire
+		return writeAsync(head -> readLines((line, start, end) -> {
+			lineRead(start, end);
+			
+			List<Statement<?>> statements;
+			try {
+				statements = mapper.map(line);
+			} catch (Exception e) {
+				failed(line, start, e);
+				return;
+			}
+			submit(head, line, start, statements);
+		}));
+	}
+	
+	// read -> parse -> bind -> write, every stage on its own thread(s), handing batches of records to the
+	// next one through a RingBuffer. the reader is one sequential reader, so checkpoints work as usual.
+	// the reporter shows how full every buffer is: a full one is in front of the slow stage, an empty
+	// one starves the stage behind it. returns true if every line was read and either written or dead-lettered
+	private boolean loadPipeline() throws Exception {
+		int batchSize = LoadOptions.pipelineBatch();
+		RingBuffer<List<Record<T>>> lines	= new RingBuffer<>(LoadOptions.pipelineRingSize());
+		RingBuffer<List<Record<T>>> parsed	= new RingBuffer<>(LoadOptions.pipelineRingSize());
+		RingBuffer<List<Record<T>>> bound	= new RingBuffer<>(LoadOptions.pipelineRingSize());
+		reporter.watch(() -> "queued batches read>parse " + depth(lines) + ", parse>bind " + depth(parsed) + ", bind>write " + depth(bound));
+		
+		int parsers		= LoadOptions.pipelineParsers();
+		int binders		= LoadOptions.pipelineBinders();
+		
+		return writeAsync(head -> {
+			ExecutorService stages = Executors.newFixedThreadPool(parsers + binders + 1);
+			List<Future<?>> parsing = new ArrayList<>();
+			for (int i = 0; i < parsers; i++)
+				parsing.add(stages.submit(stage(lines, parsed, record -> record.parsed = mapper.parse(record.line))));
+			List<Future<?>> binding = new ArrayList<>();
+			for (int i = 0; i < binders; i++)
+				binding.add(stages.submit(stage(parsed, bound, record -> {
+					record.statements	= mapper.bind(record.parsed);
+					record.parsed		= null;
+				})));
+			Future<?> writing = stages.submit(() -> {
+				try {
+					for (List<Record<T>> batch; (batch = bound.take()) != null; )
+						for (Record<T> record : batch)
+							submit(head, record.line, record.start, record.statements);
+					return null;
+				} catch (Throwable t) {
+					bound.close();
+					throw t;
+				}
+			});
+			
+			// the reader stage: the calling thread, handing the lines on in batches
+			class Reader implements LineHandler {
+				List<Record<T>> batch = new ArrayList<>(batchSize);
+
+				@Override
+				public void accept(String line, long start, long end) throws InterruptedException {
+					lineRead(start, end);
+					batch.add(new Record<>(line, start));
+					if (batch.size() == batchSize)
+						flush();
+				}
+
+				void flush() throws InterruptedException {
+					if (!batch.isEmpty())
+						lines.put(batch);
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+			
+			Exception failure = null;
+			try {
+				Reader reader = new Reader();
+				readLines(reader);
+				reader.flush();
+			} catch (Exception e) {
+				failure = e;
+			}
+			
+			// every stage drains its input once the one before it is done, a stage that failed closed
+			// its buffers so the others don't wait for it
+			lines.close();
+			Exception stageFailure = await(parsing, null);
+			parsed.close();
+			stageFailure = await(binding, stageFailure);
+			bound.close();
+			stageFailure = await(List.of(writing), stageFailure);
+			stages.shutdown();
+			
+			if (stageFailure != null)
+				throw stageFailure;
+			if (failure != null)
+				throw failure;
+		});
+	}
+	
+	// a parse or bind worker: applies step to every record of every batch from in and passes the batch
+	// on to out, records the step fails on go to the dead-letter file
+	private Callable<Void> stage(RingBuffer<List<Record<T>>> in, RingBuffer<List<Record<T>>> out, Step<T> step) {
+		return () -> {
+			try {
+				for (List<Record<T>> batch; (batch = in.take()) != null; ) {
+					batch.removeIf(record -> {
+						try {
+							step.apply(record);
+							return false;
+						} catch (Exception e) {
+							failed(record.line, record.start, e);
+							return true;
+						}
+					});
+					if (!batch.isEmpty())
+						out.put(batch);
+				}
+				return null;
+			} catch (Throwable t) {
+				in.close();
+				out.close();
+				throw t;
+			}
+		};
+	}
+	
+	// the first failure of the stages, or failure if there is one already
+	private static Exception await(List<Future<?>> stages, Exception failure) throws InterruptedException {
+		for (Future<?> stage : stages) {
+			try {
+				stage.get();
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		return failure;
+	}
+	
+	private static String depth(RingBuffer<?> buffer) {
+		return buffer.size() + "/" + buffer.capacity();
+	}
+	
+	private void lineRead(long start, long end) {
+		reporter.lineRead(end - start);
+		if (checkpoint != null)
+			checkpoint.begin(start, end);
+	}
+	
+	// a record that couldn't be parsed or bound, it is done as far as the checkpoint is concerned
+	private void failed(String line, long start, Exception e) {
+		failures.record(line, e);
+		if (checkpoint != null)
+			checkpoint.done(start);
+	}
+	
+	private void submit(WriteStage head, String line, long start, List<Statement<?>> statements) throws InterruptedException {
+		CompletableFuture<?>[] writes = new CompletableFuture<?>[statements.size()];
+		for (int i = 0; i < writes.length; i++)
+			writes[i] = head.submit(statements.get(i)).toCompletableFuture();
+		
+		// the record is done once all of its rows are stored or ran out of retries
+		CompletableFuture.allOf(writes).whenComplete((v, error) -> {
+			if (error != null)
+				failures.record(line, error);
+			else
+				reporter.rowsWritten(rows(statements));
+			if (checkpoint != null)
+				checkpoint.done(start);
+		});
+	}
+	
+	// runs the feeder against the write window and its optional stages, then waits for every write.
+	// returns false if the feeder stopped reading early
+	private boolean writeAsync(Feeder feeder) throws Exception {
+		WriteWindow window = new WriteWindow(sink, limiter, LoadOptions.retryPolicy(), LoadOptions.maxRetriesInFlight(), reporter);
+		
+		// optional stages in front of the window: partition batches, then replica ordering
+		WriteStage writer = window;
+		if (LoadOptions.groupByReplica() && session != null)
+			writer = new ReplicaGrouper(writer, session, LoadOptions.replicaGroupSize(), LoadOptions.replicaLingerMillis());
+		if (batched)
+			writer = new PartitionBatcher(writer, LoadOptions.batchMaxStatements(), LoadOptions.batchMaxBytes(), LoadOptions.batchLingerMillis());
+		WriteStage head = writer;
+
+		// whatever stops the feeder, the writes it submitted are finished before the failure log closes
+		boolean readAll = true;
+		try {
+			feeder.feed(head);
+		} catch (IOException e) {
+			System.out.println("Loading " + path + " failed: " + e.getMessage());
+			readAll = false;
+		} finally {
+			try {
+				head.flush();
+				window.drain();
+			} finally {
+				window.close();
+			}
+		}
+		if (window.retried() > 0)
+			System.out.println(window.retried() + " writes retried, " + window.failed() + " gave up");
+		System.out.println("write limit at the end: " + limiter.limit()
+				+ ", last p99 " + TimeUnit.NANOSECONDS.toMillis(limiter.lastP99Nanos()) + "ms");
+		return readAll;
+	}
+	
+	// every line is handled by a task of the executor that blocks until its writes are done.
+	// returns true if every line was read and either written or dead-lettered
+	private boolean loadBlocking(ExecutorService executor) throws Exception {
+		// only so many lines waiting in the pool's (unbounded) queue or in live virtual threads,
+		// the concurrent requests to AstraDB are bounded by the limiter, not by the pool size
+		QueueBudget budget = LoadOptions.queueBudget();
+		RetryPolicy retry = LoadOptions.retryPolicy();
+
+		boolean readAll = true;
+		try {
+			readLines((line, start, end) -> {
+				int cost = budget.acquire(line);
+				lineRead(start, end);
+				
+				executor.execute(() -> {
+					try {
+						List<Statement<?>> statements = mapper.map(line);
+						executeAll(statements, retry);
+						reporter.rowsWritten(rows(statements));
+					} catch (Exception e) {
+						failures.record(line, e);
+					} finally {
+						if (checkpoint != null)
+							checkpoint.done(start);
+						budget.release(cost);
+					}
+				});
+			});
+		} catch (Exception e) {
+			System.out.println("Loading " + path + " failed: " + e.getMessage());
+			readAll = false;
+		}
+		
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.HOURS);
+		return readAll;
+	}
+	
+	// blocking counterpart of the WriteWindow retries, used by the pool / virtual thread workers.
+	// all statements of a record (e.g. both review tables) are sent at once and the worker waits for
+	// all of them, so a record costs one round trip instead of one per table. a permit is only held
+	// while a request is on the wire, not during the backoff, and only the failed statements are resent
+	private void executeAll(List<Statement<?>> statements, RetryPolicy retry) throws InterruptedException {
+		List<Statement<?>> pending = statements;
+		for (int attempt = 1; ; attempt++) {
+			List<CompletableFuture<?>> writes = new ArrayList<>(pending.size());
+			for (Statement<?> statement : pending) {
+				limiter.acquire(); // wait for permit to go
+				long start = System.nanoTime();
+				writes.add(sink.write(statement).toCompletableFuture().whenComplete((rs, error) -> {
+					long latency = System.nanoTime() - start;
+					limiter.release(latency, error);
+					if (error == null)
+						reporter.recordLatency(latency);
+				}));
+			}
+			
+			List<Statement<?>> failed = new ArrayList<>();
+			for (int i = 0; i < writes.size(); i++) {
+				try {
+					writes.get(i).join();
+				} catch (CompletionException e) {
+					Throwable error = RetryPolicy.unwrap(e);
+					if (attempt >= retry.maxAttempts() || !retry.isRetryable(error))
+						throw error instanceof RuntimeException ? (RuntimeException) error : e;
+					failed.add(pending.get(i));
+				}
+			}
+			if (failed.isEmpty())
+				return;
+			
+			Thread.sleep(retry.backoffMillis(attempt));
+			pending = failed;
+		}
+	}
+	
+	// feeds every line from offset from on to the handler, using the reader picked by -Dhw2.load.reader
+	private void readLines(LineHandler handler) throws Exception {
+		if (isGzip()) {
+			try (InputStream in = new BackgroundGunzipStream(path, LoadOptions.gunzipQueueChunks(), LoadOptions.gunzipChunkBytes())) {
+				in.skipNBytes(from);
+				new StreamLineReader(in, from, until).read(handler);
+			}
+			return;
+		}
+		
+		if (!isSequential()) {
+			new ChunkedFileReader(Paths.get(path), from, until, LoadOptions.parsers()).read(handler);
+			return;
+		}
+		
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			channel.position(from);
+			new StreamLineReader(Channels.newInputStream(channel), from, until).read(handler);
+		}
+	}
+	
+	private boolean isGzip() {
+		return path.endsWith(".gz");
+	}
+	
+	// the pipeline has a single reader stage whatever the reader option says
+	private boolean isSequential() {
+		return isGzip() || LoadOptions.reader() == LoadOptions.Reader.BUFFERED || LoadOptions.mode() == LoadOptions.Mode.PIPELINE;
+	}
+	
+	// table rows written by the statements, a batch counts for each of its statements
+	private static int rows(List<Statement<?>> statements) {
+		int rows = 0;
+		for (Statement<?> statement : statements)
+			rows += statement instanceof BatchStatement ? ((BatchStatement) statement).size() : 1;
+		return rows;
+	}
+}
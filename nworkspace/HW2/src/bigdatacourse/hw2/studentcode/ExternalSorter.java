@@ -0,0 +1,166 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONObject;
+
+// sorts an NDJSON dataset by one of its string fields with bounded memory: runs of up to
+// maxMemoryBytes are sorted in memory and spilled to temp files, which are then k-way merged
+// (at most maxFanIn at a time) into the output. the sort is stable, lines with equal keys keep their order
+public class ExternalSorter {
+
+	// spill lines are "<key>\t<original line>"
+	private static final char	SEPARATOR	= '\t';
+
+	private final String	field;
+	private final long		maxMemoryBytes;
+	private final int		maxFanIn;
+	private final Path		tmpDir;
+
+	public ExternalSorter(String field, long maxMemoryBytes, int maxFanIn, Path tmpDir) {
+		this.field			= field;
+		this.maxMemoryBytes	= maxMemoryBytes;
+		this.maxFanIn		= maxFanIn;
+		this.tmpDir			= tmpDir;
+	}
+
+	public void sort(String pathInput, String pathOutput) throws Exception {
+		Path dir = Files.createTempDirectory(tmpDir, "hw2-sort");
+		try {
+			List<Path> spills = split(pathInput, dir);
+
+			// merge in passes until the rest fits in one final merge
+			while (spills.size() > maxFanIn) {
+				List<Path> merged = new ArrayList<>();
+				for (int i = 0; i < spills.size(); i += maxFanIn) {
+					List<Path> part = spills.subList(i, Math.min(spills.size(), i + maxFanIn));
+					Path out = Files.createTempFile(dir, "merge", ".tmp");
+					merge(part, out, true);
+					merged.add(out);
+				}
+				spills = merged;
+			}
+			merge(spills, Paths.get(pathOutput), false);
+			System.out.println("Sorted " + pathInput + " by " + field + " into " + pathOutput);
+		} finally {
+			try (var files = Files.list(dir)) {
+				for (Path file : (Iterable<Path>) files::iterator)
+					Files.deleteIfExists(file);
+			}
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	// sorted runs of the input, each one written to its own spill file
+	private List<Path> split(String pathInput, Path dir) throws Exception {
+		List<Path> spills	= new ArrayList<>();
+		List<String[]> run	= new ArrayList<>();
+		long[] runBytes		= { 0 };
+
+		try (InputStream in = pathInput.endsWith(".gz")
+				? new GZIPInputStream(Files.newInputStream(Paths.get(pathInput)), 64 * 1024)
+				: Files.newInputStream(Paths.get(pathInput))) {
+			new StreamLineReader(in, 0).read((line, start, end) -> {
+				String key;
+				try {
+					key = new JSONObject(line).optString(field, HW2StudentAnswer.NOT_AVAILABLE_VALUE).replace(SEPARATOR, ' ');
+				} catch (Exception e) {
+					key = "";	// keep malformed lines, the loader dead-letters them
+				}
+				run.add(new String[] { key, line });
+				// two bytes per char at worst plus the array and string headers
+				runBytes[0] += 2L * (key.length() + line.length()) + 96;
+
+				if (runBytes[0] >= maxMemoryBytes) {
+					spills.add(spill(run, dir));
+					run.clear();
+					runBytes[0] = 0;
+				}
+			});
+		}
+		if (!run.isEmpty())
+			spills.add(spill(run, dir));
+		return spills;
+	}
+
+	private static Path spill(List<String[]> run, Path dir) throws IOException {
+		run.sort(Comparator.comparing(entry -> entry[0]));
+
+		Path file = Files.createTempFile(dir, "run", ".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			for (String[] entry : run) {
+				out.write(entry[0]);
+				out.write(SEPARATOR);
+				out.write(entry[1]);
+				out.newLine();
+			}
+		}
+		return file;
+	}
+
+	// k-way merge of sorted spill files, keepKeys to produce another spill file instead of the final output
+	private static void merge(List<Path> inputs, Path output, boolean keepKeys) throws IOException {
+		List<BufferedReader> readers = new ArrayList<>();
+		// ties go to the earlier file, which holds the earlier lines of the input
+		PriorityQueue<Head> heads = new PriorityQueue<>(
+				Comparator.comparing((Head h) -> h.key).thenComparingInt(h -> h.source));
+
+		try (BufferedWriter out = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+			for (int i = 0; i < inputs.size(); i++) {
+				BufferedReader reader = Files.newBufferedReader(inputs.get(i), StandardCharsets.UTF_8);
+				readers.add(reader);
+				Head head = Head.next(reader, i);
+				if (head != null)
+					heads.add(head);
+			}
+
+			while (!heads.isEmpty()) {
+				Head head = heads.poll();
+				out.write(keepKeys ? head.spillLine : head.line());
+				out.newLine();
+
+				Head next = Head.next(readers.get(head.source), head.source);
+				if (next != null)
+					heads.add(next);
+			}
+		} finally {
+			for (BufferedReader reader : readers)
+				reader.close();
+		}
+	}
+
+	private static class Head {
+		final String	key;
+		final String	spillLine;
+		final int		source;
+
+		Head(String key, String spillLine, int source) {
+			this.key		= key;
+			this.spillLine	= spillLine;
+			this.source		= source;
+		}
+
+		String line() {
+			return spillLine.substring(key.length() + 1);
+		}
+
+		static Head next(BufferedReader reader, int source) throws IOException {
+			String spillLine = reader.readLine();
+			if (spillLine == null)
+				return null;
+			return new Head(spillLine.substring(0, spillLine.indexOf(SEPARATOR)), spillLine, source);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+// dead-letter file for records that could not be stored: every record is written back as
+// NDJSON with "_error" / "_message" fields added, so the file itself can be fed to the loader again.
+// lines that aren't valid json at all are kept as a "_line" string
+public class FailureLog implements AutoCloseable {
+
+	private static final String	SUFFIX	= ".failed.json";
+
+	private final Path								file;
+	private final boolean							append;
+	private final Map<String, LongAdder>			counts	= new ConcurrentHashMap<>();
+	private BufferedWriter							writer;
+	private boolean									closed;
+
+	// append keeps the failures of the load being resumed
+	public FailureLog(String pathDataset, boolean append) {
+		this.file	= Paths.get(pathDataset + SUFFIX);
+		this.append	= append;
+	}
+
+	public void record(String line, Throwable error) {
+		error = RetryPolicy.unwrap(error);
+		String type = error.getClass().getSimpleName();
+		counts.computeIfAbsent(type, k -> new LongAdder()).increment();
+
+		JSONObject json;
+		try {
+			json = new JSONObject(line);
+		} catch (Exception e) {
+			json = new JSONObject();
+			json.put("_line", line);
+		}
+		json.put("_error", type);
+		json.put("_message", String.valueOf(error.getMessage()));
+		write(json.toString());
+	}
+
+	public long count() {
+		long total = 0;
+		for (LongAdder count : counts.values())
+			total += count.sum();
+		return total;
+	}
+
+	public void printSummary() {
+		if (counts.isEmpty())
+			return;
+
+		Map<String, Long> byType = new TreeMap<>();
+		counts.forEach((type, count) -> byType.put(type, count.sum()));
+		System.out.println(count() + " records failed " + byType + ", written to " + file);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (writer != null)
+			writer.close();
+		writer	= null;
+		closed	= true;
+	}
+
+	private synchronized void write(String json) {
+		// a write that failed after the load ended: reopening the file would truncate it (or append to
+		// a file that was reported complete), so the record only goes to the console
+		if (closed) {
+			System.out.println("Failed after the load ended, not written to " + file + ": " + json);
+			return;
+		}
+		try {
+			if (writer == null) {
+				writer = append
+						? Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+						: Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+			}
+			writer.write(json);
+			writer.newLine();
+		} catch (IOException e) {
+			System.out.println("Writing to " + file + " failed: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchableStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+// writes every request as one NDJSON line: {"query": ..., "values": [...]} or {"batch": ..., "statements": [...]}
+public class FileSink implements WriteSink {
+
+	private final BufferedWriter	out;
+
+	public FileSink(String path) throws IOException {
+		this.out = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public CompletionStage<?> write(Statement<?> statement) {
+		JSONObject json;
+		if (statement instanceof BatchStatement) {
+			BatchStatement batch	= (BatchStatement) statement;
+			JSONArray statements	= new JSONArray();
+			for (BatchableStatement<?> inner : batch)
+				statements.put(toJson(inner));
+			json = new JSONObject();
+			json.put("batch", batch.getBatchType().toString());
+			json.put("statements", statements);
+		} else {
+			json = toJson(statement);
+		}
+
+		try {
+			synchronized (this) {
+				out.write(json.toString());
+				out.newLine();
+			}
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	private static JSONObject toJson(Statement<?> statement) {
+		JSONObject json		= new JSONObject();
+		JSONArray values	= new JSONArray();
+		if (statement instanceof BoundStatement) {
+			BoundStatement bound = (BoundStatement) statement;
+			json.put("query", bound.getPreparedStatement().getQuery());
+			for (int i = 0; i < bound.size(); i++)
+				values.put(toJsonValue(bound.getObject(i)));
+		} else if (statement instanceof SimpleStatement) {
+			SimpleStatement simple = (SimpleStatement) statement;
+			json.put("query", simple.getQuery());
+			for (Object value : simple.getPositionalValues())
+				values.put(toJsonValue(value));
+		}
+		json.put("values", values);
+		return json;
+	}
+
+	// numbers and strings as they are, anything else (timestamps) as its string form
+	private static Object toJsonValue(Object value) {
+		if (value == null)
+			return JSONObject.NULL;
+		if (value instanceof Number || value instanceof String || value instanceof Boolean)
+			return value;
+		return value.toString();
+	}
+}
@@ -0,0 +1,130 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+// buffers statements by a key and hands every group on once it reaches maxStatements / maxBytes
+// or gets older than the linger time. statements without a key pass straight through
+public abstract class GroupingStage implements WriteStage {
+
+	protected final WriteStage			next;
+	private final int					maxStatements;
+	private final int					maxBytes;
+	private final long					lingerNanos;
+
+	private final Map<Object, Group>	groups		= new HashMap<>();
+	private long						lastSweep	= System.nanoTime();
+
+	protected GroupingStage(WriteStage next, int maxStatements, int maxBytes, long lingerMillis) {
+		this.next			= next;
+		this.maxStatements	= maxStatements;
+		this.maxBytes		= maxBytes;
+		this.lingerNanos	= TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+	}
+
+	// the group the statement belongs to, null to not buffer it
+	protected abstract Object key(Statement<?> statement);
+
+	// hands a full or expired group to the next stage
+	protected abstract void send(Group group) throws InterruptedException;
+
+	@Override
+	public CompletionStage<?> submit(Statement<?> statement) throws InterruptedException {
+		Object key = key(statement);
+		if (key == null)
+			return next.submit(statement);
+
+		CompletableFuture<Void> done	= new CompletableFuture<>();
+		List<Group> ready				= new ArrayList<>();
+		int bytes						= size(statement);
+
+		synchronized (this) {
+			long now	= System.nanoTime();
+			Group group	= groups.get(key);
+			// send what the group has first if the statement would take it over the size cap
+			if (group != null && group.bytes + bytes > maxBytes) {
+				ready.add(groups.remove(key));
+				group = null;
+			}
+			if (group == null) {
+				group = new Group(now);
+				groups.put(key, group);
+			}
+			group.add(statement, bytes, done);
+
+			if (group.statements.size() >= maxStatements || group.bytes >= maxBytes)
+				ready.add(groups.remove(key));
+
+			// flush whatever has been waiting for too long
+			if (now - lastSweep >= lingerNanos) {
+				Iterator<Group> it = groups.values().iterator();
+				while (it.hasNext()) {
+					Group g = it.next();
+					if (now - g.created >= lingerNanos) {
+						ready.add(g);
+						it.remove();
+					}
+				}
+				lastSweep = now;
+			}
+		}
+
+		// sending may block on the window, so do it outside the lock
+		for (Group group : ready)
+			send(group);
+		return done;
+	}
+
+	@Override
+	public void flush() throws InterruptedException {
+		List<Group> ready;
+		synchronized (this) {
+			ready = new ArrayList<>(groups.values());
+			groups.clear();
+		}
+		for (Group group : ready)
+			send(group);
+		next.flush();
+	}
+
+	private static int size(Statement<?> statement) {
+		return (int) CountingSink.valueBytes(statement);
+	}
+
+	protected static class Group {
+		final long								created;
+		final List<Statement<?>>				statements	= new ArrayList<>();
+		final List<CompletableFuture<Void>>		futures		= new ArrayList<>();
+		int										bytes;
+
+		Group(long created) {
+			this.created = created;
+		}
+
+		void add(Statement<?> statement, int size, CompletableFuture<Void> future) {
+			statements.add(statement);
+			futures.add(future);
+			bytes += size;
+		}
+
+		// completes the futures of the group's statements once the write of the group completes
+		void completeWith(CompletionStage<?> write) {
+			write.whenComplete((rs, error) -> {
+				for (CompletableFuture<Void> f : futures) {
+					if (error == null)
+						f.complete(null);
+					else
+						f.completeExceptionally(error);
+				}
+			});
+		}
+	}
+}
@@ -4,29 +4,26 @@ package bigdatacourse.hw2.studentcode;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import com.datastax.oss.driver.api.core.CqlSession;
 import org.json.JSONObject;
 
 //json
-import java.io.BufferedReader;
-import java.io.FileReader;
 import org.json.JSONArray;
 
-//threads
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.Semaphore;
-
 //remove if timeout isnt needed
 import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
 import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.BatchType;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
 import java.time.Duration;
 
-import com.datastax.oss.driver.api.core.cql.ResultSet;
 import com.datastax.oss.driver.api.core.cql.Row;
 //import java.util.HashSet;
 //import java.util.Set;
@@ -37,22 +34,35 @@ public class HW2StudentAnswer implements HW2API{
 	
 	// general consts
 	public static final String NOT_AVAILABLE_VALUE = "na";
+	private static final String NOT_EXISTS_VALUE = "not exists";
 
 	// CQL stuff
 	private static final String TABLE_ITEMS = "items";
 	private static final String TABLE_REVIEWS_BY_USER = "reviews_by_user";
 	private static final String TABLE_REVIEWS_BY_ITEM = "reviews_by_item";
 	
+	// the files of every category in a dataset directory
+	private static final String ITEMS_FILES = "meta_*.{json,json.gz}";
+	private static final String REVIEWS_FILES = "reviews_*.{json,json.gz}";
+	
 	// cassandra session
 	private CqlSession session;
 	
-	// prepared statements
-	private PreparedStatement insertItem;
+	// prepared statements (the inserts also work unprepared, for loading into the offline sinks)
+	private InsertStatement insertItem = new InsertStatement("INSERT INTO " + TABLE_ITEMS + " (asin, title, description, imUrl) VALUES (?, ?, ?, ?)");
+	private InsertStatement insertItemCategory = new InsertStatement("INSERT INTO " + TABLE_ITEMS + " (asin, category_name) VALUES (?, ?)");
 	private PreparedStatement selectItem;
-	private PreparedStatement insertReviewByUser;
-	private PreparedStatement insertReviewByItem;
+	private InsertStatement insertReviewByUser = new InsertStatement("INSERT INTO " + TABLE_REVIEWS_BY_USER + " (reviewerID, time, asin, reviewerName, rating, summary, reviewText) VALUES (?, ?, ?, ?, ?, ?, ?)");
+	private InsertStatement insertReviewByItem = new InsertStatement("INSERT INTO " + TABLE_REVIEWS_BY_ITEM + " (asin, time, reviewerID, reviewerName, rating, summary, reviewText) VALUES (?, ?, ?, ?, ?, ?, ?)");
 	private PreparedStatement selectReviewsByUser;
 	private PreparedStatement selectReviewsByItem;
+	private PreparedStatement selectLatestReviewsByUser;
+	private PreparedStatement selectLatestReviewsByItem;
+	private PreparedStatement selectReviewsByUserInRange;
+	private PreparedStatement selectReviewsByItemInRange;
+	
+	// formatted item() results, null if disabled (-Dhw2.cache.itemsMB=0)
+	private final ResultCache itemCache = LoadOptions.itemCache();
 	
 	@Override
 	public void connect(String pathAstraDBBundleFile, String username, String password, String keyspace) {
@@ -64,10 +74,13 @@ public class HW2StudentAnswer implements HW2API{
 		System.out.println("Initializing connection to Cassandra...");
 		
 		// Create a config loader to increase timeouts
+		// (and to count the bytes on the wire, for the load reports)
 	    DriverConfigLoader loader = DriverConfigLoader.programmaticBuilder()
 	            .withDuration(DefaultDriverOption.REQUEST_TIMEOUT, Duration.ofSeconds(10))
 	            .withDuration(DefaultDriverOption.CONNECTION_INIT_QUERY_TIMEOUT, Duration.ofSeconds(10))
 	            .withDuration(DefaultDriverOption.CONTROL_CONNECTION_TIMEOUT, Duration.ofSeconds(10))
+	            .withStringList(DefaultDriverOption.METRICS_SESSION_ENABLED, List.of("bytes-sent", "bytes-received"))
+	            .withString(DefaultDriverOption.PROTOCOL_COMPRESSION, compression())
 	            .build();
 	    
 		this.session = CqlSession.builder()
@@ -81,6 +94,27 @@ public class HW2StudentAnswer implements HW2API{
 	}
 
 
+	// -Dhw2.compression, if the driver can do it: the compression libraries are optional dependencies
+	// of the driver and not in lib, without them the connection would fail
+	private static String compression() {
+		String compression = LoadOptions.compression();
+		String library;
+		switch (compression) {
+			case "lz4":		library = "net.jpountz.lz4.LZ4Factory";	break;
+			case "snappy":	library = "org.xerial.snappy.Snappy";	break;
+			default:		return "none";
+		}
+		try {
+			Class.forName(library);
+			System.out.println("Compressing the connection with " + compression);
+			return compression;
+		} catch (ClassNotFoundException e) {
+			System.out.println("WARNING - " + compression + " needs " + library + " on the classpath, connecting uncompressed");
+			return "none";
+		}
+	}
+
+
 	@Override
 	public void close() {
 		if (session == null) {
@@ -88,6 +122,8 @@ public class HW2StudentAnswer implements HW2API{
 			return;
 		}
 		
+		if (itemCache != null)
+			System.out.println("item cache: " + itemCache.stats());
 		System.out.println("Closing Cassandra connection...");
 		session.close();
 		System.out.println("Closing Cassandra connection... Done");
@@ -144,125 +180,205 @@ public class HW2StudentAnswer implements HW2API{
 	@Override
 	public void initialize() {
 		//items
-		insertItem = session.prepare("INSERT INTO " + TABLE_ITEMS + " (asin, category_name, title, description, imUrl) VALUES (?, ?, ?, ?, ?)");
+		insertItem.prepare(session);
+		insertItemCategory.prepare(session);
 	    selectItem = session.prepare("SELECT * FROM " + TABLE_ITEMS + " WHERE asin = ?");
 
 	    //reviews
-	    insertReviewByUser = session.prepare("INSERT INTO " + TABLE_REVIEWS_BY_USER + " (reviewerID, time, asin, reviewerName, rating, summary, reviewText) VALUES (?, ?, ?, ?, ?, ?, ?)");
-	    insertReviewByItem = session.prepare("INSERT INTO " + TABLE_REVIEWS_BY_ITEM + " (asin, time, reviewerID, reviewerName, rating, summary, reviewText) VALUES (?, ?, ?, ?, ?, ?, ?)");
+	    insertReviewByUser.prepare(session);
+	    insertReviewByItem.prepare(session);
 	    
 	    selectReviewsByUser = session.prepare("SELECT * FROM " + TABLE_REVIEWS_BY_USER + " WHERE reviewerID = ?");
 	    selectReviewsByItem = session.prepare("SELECT * FROM " + TABLE_REVIEWS_BY_ITEM + " WHERE asin = ?");
+	    // the partitions are clustered by time DESC, so the first rows are the latest reviews
+	    selectLatestReviewsByUser = session.prepare("SELECT * FROM " + TABLE_REVIEWS_BY_USER + " WHERE reviewerID = ? LIMIT ?");
+	    selectLatestReviewsByItem = session.prepare("SELECT * FROM " + TABLE_REVIEWS_BY_ITEM + " WHERE asin = ? LIMIT ?");
+	    // time is the first clustering column, so a range on it is a single slice of the partition
+	    selectReviewsByUserInRange = session.prepare("SELECT * FROM " + TABLE_REVIEWS_BY_USER + " WHERE reviewerID = ? AND time >= ? AND time < ?");
+	    selectReviewsByItemInRange = session.prepare("SELECT * FROM " + TABLE_REVIEWS_BY_ITEM + " WHERE asin = ? AND time >= ? AND time < ?");
     	
 	}
 	@Override
 	public void loadItems(String pathItemsFile) throws Exception {
-		// initialize 250 threads
-		ExecutorService executor = Executors.newFixedThreadPool(250);
-		// allow only 100 concurrent requests to AstraDB at a time
-		Semaphore throttler = new Semaphore(100);
+		loadItems(pathItemsFile, false);
+	}
 
-		try (BufferedReader br = new BufferedReader(new FileReader(pathItemsFile))) {
-			String line;
-			while ((line = br.readLine()) != null) {
-				final String currentLine = line;
-				
-				executor.execute(() -> {
-					try {
-						throttler.acquire(); // wait for permit to go
-						
-						JSONObject json = new JSONObject(currentLine);
-						String asin  = json.optString("asin", NOT_AVAILABLE_VALUE);
-						String title = json.optString("title", NOT_AVAILABLE_VALUE);
-						String image = json.optString("imUrl", NOT_AVAILABLE_VALUE);
-						String desc  = json.optString("description", NOT_AVAILABLE_VALUE);
-						
-						// check if categories are not empty
-						if (json.has("categories") && json.getJSONArray("categories").length() != 0) {
-							JSONArray categoriesOuter = json.getJSONArray("categories");
-							for (int i = 0; i < categoriesOuter.length(); i++) {
-								JSONArray categoriesInner = categoriesOuter.getJSONArray(i);
-								for (int j = 0; j < categoriesInner.length(); j++) {
-									String categoryName = categoriesInner.optString(j, NOT_AVAILABLE_VALUE);
-									
-									// Flattening categories 
-									session.execute(insertItem.bind(asin, categoryName, title, desc, image));
-								}
-							}
-						} else {
-							// fallback to NA if categories are missing or empty
-							session.execute(insertItem.bind(asin, NOT_AVAILABLE_VALUE, title, desc, image));
-						}
-					} catch (Exception e) {
-					} finally {
-						throttler.release();
-					}
-				});
-			}
-		} catch (Exception e) {
-			System.out.println("Loading items failed: " + e.getMessage());
+	@Override
+	public void loadItems(String pathItemsFile, boolean resume) throws Exception {
+		invalidateItems();
+		try {
+			itemsLoader("items", pathItemsFile).load(resume);
+		} finally {
+			invalidateItems();
 		}
-		
-		executor.shutdown();
-		executor.awaitTermination(1, TimeUnit.HOURS);
 		System.out.println("Done loading items");
 	}
 
 	@Override
 	public void loadReviews(String pathReviewsFile) throws Exception {
-		ExecutorService executor = Executors.newFixedThreadPool(250);
-		Semaphore throttler = new Semaphore(100);
-
-		try (BufferedReader br = new BufferedReader(new FileReader(pathReviewsFile))) {
-			String line;
-			while ((line = br.readLine()) != null) {
-				final String currentLine = line;
-				
-				executor.execute(() -> {
-					try {
-						throttler.acquire();
-						
-						JSONObject json = new JSONObject(currentLine);
-						
-						// Extract attributes 
-						String asin         = json.optString("asin", NOT_AVAILABLE_VALUE);
-						String reviewerID   = json.optString("reviewerID", NOT_AVAILABLE_VALUE);
-						String reviewerName = json.optString("reviewerName", NOT_AVAILABLE_VALUE);
-						String summary      = json.optString("summary", NOT_AVAILABLE_VALUE);
-						String reviewText   = json.optString("reviewText", NOT_AVAILABLE_VALUE);
-						int rating          = json.optInt("overall", -1); 
-						
-						long unixTime = json.optLong("unixReviewTime", 0);
-						Instant time = Instant.ofEpochSecond(unixTime);
-						
-						session.execute(insertReviewByItem.bind(asin, time, reviewerID, reviewerName, rating, summary, reviewText));
-						session.execute(insertReviewByUser.bind(reviewerID, time, asin, reviewerName, rating, summary, reviewText));
+		loadReviews(pathReviewsFile, false);
+	}
 
-					} catch (Exception e) {
-					} finally {
-						throttler.release();
-					}
-				});
-			}
-		} catch (Exception e) {
-			System.out.println("Loading reviews failed: " + e.getMessage());
+	@Override
+	public void loadReviews(String pathReviewsFile, boolean resume) throws Exception {
+		// reviews are written in per-partition batches, see PartitionBatcher
+		reviewsLoader("reviews", pathReviewsFile).load(resume);
+		System.out.println("Done loading reviews");
+	}
+	
+	@Override
+	public void loadReviewsSorted(String pathReviewsFile, String pathSortedFile, boolean resume) throws Exception {
+		// the sort order only helps the table partitioned by reviewerID, reviews_by_item comes from the
+		// original file. each table is written from one file, at the same time
+		new SharedLoad()
+			.add(reviewsLoader("reviews by item", pathReviewsFile, true, false), 1)
+			.add(reviewsLoader("reviews by user", pathSortedFile, false, true), 1)
+			.run(session, 2, resume);
+		System.out.println("Done loading reviews");
+	}
+	
+	@Override
+	public void loadAll(String pathItemsFile, String pathReviewsFile, boolean resume) throws Exception {
+		// both files at once, through one limiter split into weighted lanes so neither load starves the other
+		// and the one that is left alone gets the whole limit
+		invalidateItems();
+		try {
+			new SharedLoad()
+				.add(itemsLoader("items", pathItemsFile), LoadOptions.itemsWeight())
+				.add(reviewsLoader("reviews", pathReviewsFile), LoadOptions.reviewsWeight())
+				.run(session, 2, resume);
+		} finally {
+			invalidateItems();
+		}
+		System.out.println("Done loading items and reviews");
+	}
+	
+	@Override
+	public void loadItemsFiles(String pathItemsFiles, boolean resume) throws Exception {
+		SharedLoad load = new SharedLoad();
+		for (String path : DatasetFiles.find(pathItemsFiles, ITEMS_FILES))
+			load.add(itemsLoader(Paths.get(path).getFileName().toString(), path), 1);
+		invalidateItems();
+		try {
+			load.run(session, LoadOptions.parallelFiles(), resume);
+		} finally {
+			invalidateItems();
 		}
-				
-		executor.shutdown();
-		executor.awaitTermination(1, TimeUnit.HOURS);
+		System.out.println("Done loading items");
+	}
+	
+	@Override
+	public void loadReviewsFiles(String pathReviewsFiles, boolean resume) throws Exception {
+		SharedLoad load = new SharedLoad();
+		for (String path : DatasetFiles.find(pathReviewsFiles, REVIEWS_FILES))
+			load.add(reviewsLoader(Paths.get(path).getFileName().toString(), path), 1);
+		load.run(session, LoadOptions.parallelFiles(), resume);
 		System.out.println("Done loading reviews");
 	}
 	
+	// cached items may be outdated by a load of items, also while it runs
+	private void invalidateItems() {
+		if (itemCache != null)
+			itemCache.clear();
+	}
+	
+	private DatasetLoader<JSONObject> itemsLoader(String name, String pathItemsFile) {
+		return new DatasetLoader<>(session, name, pathItemsFile, DatasetLoader.StatementMapper.of(JSONObject::new, this::itemStatements), false);
+	}
+	
+	private DatasetLoader<JSONObject> reviewsLoader(String name, String pathReviewsFile) {
+		return reviewsLoader(name, pathReviewsFile, true, true);
+	}
+	
+	private DatasetLoader<JSONObject> reviewsLoader(String name, String pathReviewsFile, boolean byItem, boolean byUser) {
+		return new DatasetLoader<>(session, name, pathReviewsFile,
+				DatasetLoader.StatementMapper.of(JSONObject::new, json -> reviewStatements(json, byItem, byUser)), LoadOptions.batchReviews());
+	}
+	
+	private List<Statement<?>> itemStatements(JSONObject json) {
+		String asin  = json.optString("asin", NOT_AVAILABLE_VALUE);
+		String title = json.optString("title", NOT_AVAILABLE_VALUE);
+		String image = json.optString("imUrl", NOT_AVAILABLE_VALUE);
+		String desc  = json.optString("description", NOT_AVAILABLE_VALUE);
+		
+		// title, description and imUrl are static - write them once per asin,
+		// the category rows only carry the clustering key
+		BatchStatementBuilder batch = BatchStatement.builder(BatchType.UNLOGGED);
+		batch.addStatement(insertItem.bind(asin, title, desc, image));
+		
+		// check if categories are not empty
+		if (json.has("categories") && json.getJSONArray("categories").length() != 0) {
+			JSONArray categoriesOuter = json.getJSONArray("categories");
+			for (int i = 0; i < categoriesOuter.length(); i++) {
+				JSONArray categoriesInner = categoriesOuter.getJSONArray(i);
+				for (int j = 0; j < categoriesInner.length(); j++) {
+					String categoryName = categoriesInner.optString(j, NOT_AVAILABLE_VALUE);
+					
+					// Flattening categories 
+					batch.addStatement(insertItemCategory.bind(asin, categoryName));
+				}
+			}
+		} else {
+			// fallback to NA if categories are missing or empty
+			batch.addStatement(insertItemCategory.bind(asin, NOT_AVAILABLE_VALUE));
+		}
+		
+		// all rows share the partition, so this is a single mutation on the replica
+		return List.of(batch.build());
+	}
+	
+	// the rows of reviews_by_item and / or reviews_by_user
+	private List<Statement<?>> reviewStatements(JSONObject json, boolean byItem, boolean byUser) {
+		// Extract attributes 
+		String asin         = json.optString("asin", NOT_AVAILABLE_VALUE);
+		String reviewerID   = json.optString("reviewerID", NOT_AVAILABLE_VALUE);
+		String reviewerName = json.optString("reviewerName", NOT_AVAILABLE_VALUE);
+		String summary      = json.optString("summary", NOT_AVAILABLE_VALUE);
+		String reviewText   = json.optString("reviewText", NOT_AVAILABLE_VALUE);
+		int rating          = json.optInt("overall", -1); 
+		
+		long unixTime = json.optLong("unixReviewTime", 0);
+		Instant time = Instant.ofEpochSecond(unixTime);
+		
+		List<Statement<?>> statements = new ArrayList<>(2);
+		if (byItem)
+			statements.add(insertReviewByItem.bind(asin, time, reviewerID, reviewerName, rating, summary, reviewText));
+		if (byUser)
+			statements.add(insertReviewByUser.bind(reviewerID, time, asin, reviewerName, rating, summary, reviewText));
+		return statements;
+	}
+	
+
+	@Override
+	public void sortReviews(String pathReviewsFile, String pathSortedFile) throws Exception {
+		// reviews_by_user is partitioned by reviewerID, sorted input makes its batches dense
+		LoadOptions.sorter("reviewerID").sort(pathReviewsFile, pathSortedFile);
+	}
+	
 
 	@Override
 	public String item(String asin) {
+		if (itemCache == null)
+			return queryItem(asin);
+		
+		String item = itemCache.get(asin);
+		if (item == null) {
+			item = queryItem(asin);
+			// an item that is missing now may be loaded any moment, only found ones are kept
+			if (!item.equals(NOT_EXISTS_VALUE))
+				itemCache.put(asin, item);
+		}
+		return item;
+	}
+	
+	private String queryItem(String asin) {
 		// execute query
 	    com.datastax.oss.driver.api.core.cql.ResultSet rs = session.execute(selectItem.bind(asin));
 	    java.util.List<com.datastax.oss.driver.api.core.cql.Row> rows = rs.all();
 
 	    // return "not exists" if the asin isn't found
 	    if (rows.isEmpty()) {
-	        return "not exists";
+	        return NOT_EXISTS_VALUE;
 	    }
 
 	    // extract all columns that do not change between same ansi rows
@@ -288,55 +404,60 @@ public class HW2StudentAnswer implements HW2API{
 	
 	@Override
 	public Iterable<String> userReviews(String reviewerID) {
-		// list to store the formatted review strings
-	    ArrayList<String> reviewRepers = new ArrayList<String>();
-	    
-		// execute query - results arrive pre-sorted by Cassandra (time DESC, asin ASC)
-	    com.datastax.oss.driver.api.core.cql.ResultSet rs = session.execute(selectReviewsByUser.bind(reviewerID));
-	    
-		// iterate through all reviews found for this user
-	    for (com.datastax.oss.driver.api.core.cql.Row row : rs) {
-	        String reviewRepr = formatReview(
-	            row.getInstant("time"),
-	            row.getString("asin"),
-	            row.getString("reviewerID"),
-	            row.getString("reviewerName"),
-	            row.getInt("rating"),
-	            row.getString("summary"),
-	            row.getString("reviewText")
-	        );
-	        reviewRepers.add(reviewRepr);
-	    }
-
-	    // print the total count and return the list
-	    System.out.println("total reviews: " + reviewRepers.size());
-	    return reviewRepers;
+		// results arrive pre-sorted by Cassandra (time DESC, asin ASC), formatted page by page while printed
+		return reviews(selectReviewsByUser.bind(reviewerID));
 	}
 
 	@Override
 	public Iterable<String> itemReviews(String asin) {
-		// list to store the formatted review strings
-		ArrayList<String> reviewRepers = new ArrayList<String>();
-			
-		// execute query - results arrive pre-sorted by Cassandra (time DESC, reviewerID ASC)
-		ResultSet rs = session.execute(selectReviewsByItem.bind(asin));
-			
-		// iterate through all reviews found for this item
-		for (Row row : rs) {
-			String reviewRepr = formatReview(
-				row.getInstant("time"),
-				row.getString("asin"),
-				row.getString("reviewerID"),
-				row.getString("reviewerName"),
-				row.getInt("rating"),
-				row.getString("summary"),
-				row.getString("reviewText")
-			);
-			reviewRepers.add(reviewRepr);
-		}
+		// results arrive pre-sorted by Cassandra (time DESC, reviewerID ASC)
+		return reviews(selectReviewsByItem.bind(asin));
+	}
+	
+	@Override
+	public Iterable<String> userReviews(String reviewerID, int limit) {
+		// the server reads only the first limit rows of the partition, however many reviews the user has
+		return reviews(selectLatestReviewsByUser.bind(reviewerID, limit), limit);
+	}
+
+	@Override
+	public Iterable<String> itemReviews(String asin, int limit) {
+		return reviews(selectLatestReviewsByItem.bind(asin, limit), limit);
+	}
+	
+	@Override
+	public Iterable<String> userReviews(String reviewerID, Instant from, Instant to) {
+		// only the slice [from, to) of the partition is read, newest first like the whole history
+		return reviews(selectReviewsByUserInRange.bind(reviewerID, from, to));
+	}
 
-		System.out.println("total reviews: " + reviewRepers.size());
-		return reviewRepers;	
+	@Override
+	public Iterable<String> itemReviews(String asin, Instant from, Instant to) {
+		return reviews(selectReviewsByItemInRange.bind(asin, from, to));
+	}
+	
+	private Iterable<String> reviews(BoundStatement select) {
+		return reviews(select, Integer.MAX_VALUE);
+	}
+	
+	// the total is only known once the last page was read, so it is printed after the reviews
+	private Iterable<String> reviews(BoundStatement select, int limit) {
+		if (limit <= 0)
+			throw new IllegalArgumentException("ERROR - the number of reviews must be positive, got " + limit);
+		return new PagedResult(session, select.setPageSize(Math.min(limit, LoadOptions.fetchSize())), this::formatReview,
+				total -> System.out.println("total reviews: " + total));
+	}
+	
+	private String formatReview(Row row) {
+		return formatReview(
+			row.getInstant("time"),
+			row.getString("asin"),
+			row.getString("reviewerID"),
+			row.getString("reviewerName"),
+			row.getInt("rating"),
+			row.getString("summary"),
+			row.getString("reviewText")
+		);
 	}
 
 	
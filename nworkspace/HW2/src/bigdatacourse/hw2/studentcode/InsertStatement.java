@@ -0,0 +1,28 @@
+package bigdatacourse.hw2.studentcode;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.BatchableStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+
+// an INSERT used by the loaders. once prepared it binds into bound statements, before that
+// (no connection, e.g. the offline sinks) into simple statements with positional values
+public class InsertStatement {
+
+	private final String		query;
+	private PreparedStatement	prepared;
+
+	public InsertStatement(String query) {
+		this.query = query;
+	}
+
+	public void prepare(CqlSession session) {
+		prepared = session.prepare(query);
+	}
+
+	public BatchableStatement<?> bind(Object... values) {
+		if (prepared != null)
+			return prepared.bind(values);
+		return SimpleStatement.newInstance(query, values);
+	}
+}
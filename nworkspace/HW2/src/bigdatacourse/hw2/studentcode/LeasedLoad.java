@@ -0,0 +1,232 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+// one worker of a load shared by several processes or hosts. the file is cut into newline aligned
+// ranges, and the workers lease them through files in a shared directory:
+//   ranges.json		the layout, written by the first worker so all of them cut the file the same way
+//   range-N.lease		a worker owns range N, it touches the file every ttl/3 while loading it
+//   range-N.done		range N is loaded
+//   range-N.checkpoint	/ .failed.json, the range's progress and dead letters, see DatasetLoader.loadRange
+// a lease that wasn't touched for ttl belongs to a crashed worker: another one takes it over and continues
+// from the range's checkpoint. the expiry is judged by the local clock against the file's modification
+// time, so the hosts' clocks must agree to well within the ttl. a worker that was only stalled may still
+// write rows of a range that was taken over, which is harmless as the inserts are idempotent
+public class LeasedLoad {
+
+	private static final String	LAYOUT	= "ranges.json";
+
+	private final DatasetLoader<?>	loader;
+	private final Path				dataset;
+	private final Path				dir;
+	private final long				rangeBytes;
+	private final long				ttlMillis;
+	private final String			worker;
+
+	public LeasedLoad(DatasetLoader<?> loader, String pathDataset, String pathLeaseDir, long rangeBytes, long ttlMillis, String worker) {
+		this.loader		= loader;
+		this.dataset	= Paths.get(pathDataset);
+		this.dir		= Paths.get(pathLeaseDir);
+		this.rangeBytes	= rangeBytes;
+		this.ttlMillis	= ttlMillis;
+		this.worker		= worker;
+	}
+
+	// leases and loads ranges until every range is done, by this worker or another one
+	public void run() throws Exception {
+		if (dataset.toString().endsWith(".gz"))
+			throw new IOException("ERROR - a .gz file can't be split into ranges, gunzip " + dataset + " first");
+
+		Files.createDirectories(dir);
+		List<long[]> ranges = layout();
+		System.out.println("Worker " + worker + " loading " + dataset + " (" + ranges.size() + " ranges) with " + dir);
+
+		ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "lease-heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			// start at a different range in every worker, so they don't all race for the same leases
+			int first = Math.floorMod(worker.hashCode(), ranges.size());
+			int loaded = 0;
+			while (true) {
+				boolean leasedElsewhere = false;
+				for (int i = 0; i < ranges.size(); i++) {
+					int range = (first + i) % ranges.size();
+					if (Files.exists(file(range, ".done")))
+						continue;
+					if (!acquire(range)) {
+						leasedElsewhere = true;
+						continue;
+					}
+
+					Path lease = file(range, ".lease");
+					ScheduledFuture<?> touching = heartbeat.scheduleWithFixedDelay(
+							() -> touch(lease), ttlMillis / 3, ttlMillis / 3, TimeUnit.MILLISECONDS);
+					try {
+						long[] bounds = ranges.get(range);
+						if (!loader.loadRange(bounds[0], bounds[1], base(range)))
+							throw new IOException("ERROR - loading range " + range + " of " + dataset + " stopped early");
+						Files.writeString(file(range, ".done"), worker, StandardCharsets.UTF_8);
+						loaded++;
+					} finally {
+						touching.cancel(false);
+						release(lease);
+					}
+				}
+				if (!leasedElsewhere)
+					break;
+				// the rest is being loaded by others, wait for them to finish or for a lease to expire
+				Thread.sleep(ttlMillis / 3);
+			}
+			System.out.println("Worker " + worker + " loaded " + loaded + " of " + ranges.size() + " ranges, all done"
+					+ " (remove " + dir + " to load " + dataset.getFileName() + " again)");
+		} finally {
+			heartbeat.shutdownNow();
+		}
+	}
+
+	// the ranges' [start, end) offsets, from the layout the first worker saved
+	private List<long[]> layout() throws IOException {
+		long size = Files.size(dataset);
+		Path file = dir.resolve(LAYOUT);
+		if (!Files.exists(file)) {
+			JSONObject json = new JSONObject();
+			json.put("file", dataset.getFileName().toString());
+			json.put("size", size);
+			json.put("rangeBytes", rangeBytes);
+			Path tmp = dir.resolve(LAYOUT + "." + worker + ".tmp");
+			Files.writeString(tmp, json.toString(), StandardCharsets.UTF_8);
+			try {
+				// a link fails if the name exists: if another worker was first, its layout wins
+				Files.createLink(file, tmp);
+			} catch (FileAlreadyExistsException e) {
+				// fine, read theirs
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+
+		JSONObject json = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+		if (!json.getString("file").equals(dataset.getFileName().toString()))
+			throw new IOException("ERROR - " + dir + " holds the leases of " + json.getString("file") + ", not of " + dataset);
+		if (json.getLong("size") != size)
+			throw new IOException("ERROR - " + dir + " was made for a different version of " + dataset);
+
+		// cut at the first line start after every multiple of rangeBytes, the same in every worker
+		long step = json.getLong("rangeBytes");
+		List<long[]> ranges = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(dataset, StandardOpenOption.READ)) {
+			long start = 0;
+			while (start < size) {
+				long end = Math.min(size, ChunkedFileReader.nextLineStart(channel, Math.max(start + 1, (ranges.size() + 1) * step)));
+				ranges.add(new long[] { start, end });
+				start = end;
+			}
+		}
+		return ranges;
+	}
+
+	// true if this worker now holds the lease of the range
+	private boolean acquire(int range) throws IOException {
+		Path lease = file(range, ".lease");
+		if (create(lease))
+			return true;
+
+		FileTime touched;
+		try {
+			touched = Files.getLastModifiedTime(lease);
+		} catch (NoSuchFileException e) {
+			return create(lease);
+		}
+		if (!expired(touched))
+			return false;
+
+		// only one of the workers racing for an expired lease manages to move it aside
+		Path stale = dir.resolve(lease.getFileName() + "." + worker + ".expired");
+		try {
+			Files.move(lease, stale, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		// too late: someone else took it over in the meantime, give the fresh lease back
+		if (!expired(Files.getLastModifiedTime(stale))) {
+			try {
+				Files.createLink(lease, stale);
+			} catch (FileAlreadyExistsException e) {
+				// yet another worker has it by now
+			} finally {
+				Files.deleteIfExists(stale);
+			}
+			return false;
+		}
+
+		String owner = Files.readString(stale, StandardCharsets.UTF_8);
+		Files.deleteIfExists(stale);
+		if (!create(lease))
+			return false;
+		System.out.println("Worker " + worker + " took over range " + range + " from " + owner + ", its lease expired");
+		return true;
+	}
+
+	private boolean create(Path lease) throws IOException {
+		try {
+			Files.writeString(lease, worker, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+	}
+
+	// unless it was taken over meanwhile
+	private void release(Path lease) throws IOException {
+		try {
+			if (worker.equals(Files.readString(lease, StandardCharsets.UTF_8)))
+				Files.deleteIfExists(lease);
+		} catch (NoSuchFileException e) {
+			// taken over and already done
+		}
+	}
+
+	private boolean expired(FileTime touched) {
+		return System.currentTimeMillis() - touched.toMillis() > ttlMillis;
+	}
+
+	private void touch(Path lease) {
+		try {
+			if (!worker.equals(Files.readString(lease, StandardCharsets.UTF_8)))
+				System.out.println("Worker " + worker + " lost " + lease.getFileName() + ", was it stalled for longer than the ttl?");
+			else
+				Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			System.out.println("Renewing " + lease + " failed: " + e.getMessage());
+		}
+	}
+
+	private String base(int range) {
+		return dir.resolve(String.format("range-%05d", range)).toString();
+	}
+
+	private Path file(int range, String suffix) {
+		return Paths.get(base(range) + suffix);
+	}
+}
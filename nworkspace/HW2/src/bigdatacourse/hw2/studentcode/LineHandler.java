@@ -0,0 +1,8 @@
+package bigdatacourse.hw2.studentcode;
+
+// receives the lines of a dataset file, may be called from several reader threads at once.
+// start/end are the byte offsets of the line in the file, end is where the next line starts
+public interface LineHandler {
+
+	void accept(String line, long start, long end) throws Exception;
+}
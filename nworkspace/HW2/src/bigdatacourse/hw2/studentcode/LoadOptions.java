@@ -0,0 +1,258 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+
+// loader tuning knobs, read from system properties so the CLI doesn't need new commands
+// e.g. java -Dhw2.load.mode=threads -Dhw2.load.maxInFlight=512 ...
+public final class LoadOptions {
+
+	public enum Mode {
+		THREADS,	// legacy: fixed thread pool, each worker blocks until the writes of its line are done
+		VIRTUAL,	// like THREADS, but a virtual thread per line, only the limiter bounds concurrency
+		ASYNC,		// reader thread pipelines session.executeAsync through a bounded window
+		PIPELINE	// like ASYNC, but reading, parsing, binding and writing are separate stages, see pipeline*
+	}
+
+	public enum Sink {
+		CQL,		// the cassandra session
+		DISCARD,	// drop everything, read + parse + bind only
+		COUNT,		// count requests / rows / bytes
+		FILE		// NDJSON of the statements into hw2.load.sinkFile
+	}
+
+	// gzip compressed (.gz) files are always read as a stream, whatever the reader
+	public enum Reader {
+		BUFFERED,	// one sequential reader on the calling thread
+		MMAP		// file split into newline aligned ranges, each mapped and parsed by its own thread
+	}
+
+	private LoadOptions() {
+	}
+
+	public static Mode mode() {
+		return Mode.valueOf(System.getProperty("hw2.load.mode", "async").toUpperCase());
+	}
+
+	public static Reader reader() {
+		return Reader.valueOf(System.getProperty("hw2.load.reader", "buffered").toUpperCase());
+	}
+
+	// where the loaded statements go, session may be null for the offline sinks
+	public static WriteSink sink(CqlSession session) throws IOException {
+		switch (Sink.valueOf(System.getProperty("hw2.load.sink", "cql").toUpperCase())) {
+			case DISCARD:	return new DiscardSink();
+			case COUNT:		return new CountingSink();
+			case FILE:		return new FileSink(System.getProperty("hw2.load.sinkFile", "statements.json"));
+			default:		return new CqlSink(session);
+		}
+	}
+
+	// PIPELINE mode: threads of the parse stage and of the bind stage (the reader and the writer are one each)
+	public static int pipelineParsers() {
+		return Integer.getInteger("hw2.load.pipeline.parsers", Runtime.getRuntime().availableProcessors());
+	}
+
+	public static int pipelineBinders() {
+		return Integer.getInteger("hw2.load.pipeline.binders", 1);
+	}
+
+	// records handed from stage to stage at once, and batches each ring buffer between two stages holds
+	public static int pipelineBatch() {
+		return Integer.getInteger("hw2.load.pipeline.batch", 64);
+	}
+
+	public static int pipelineRingSize() {
+		return Integer.getInteger("hw2.load.pipeline.ringSize", 256);
+	}
+
+	// native protocol compression of the connection: none, lz4 or snappy (snappy only up to protocol v4).
+	// the driver needs lz4-java / snappy-java in lib for them, see HW2StudentAnswer.connect
+	public static String compression() {
+		return System.getProperty("hw2.compression", "none").toLowerCase();
+	}
+
+	// reader/parser threads for the mmap reader
+	public static int parsers() {
+		return Integer.getInteger("hw2.load.parsers", Runtime.getRuntime().availableProcessors());
+	}
+
+	// .gz datasets are inflated on a separate thread, at most this many chunks ahead of the parser
+	public static int gunzipQueueChunks() {
+		return Integer.getInteger("hw2.load.gunzipQueueChunks", 16);
+	}
+
+	public static int gunzipChunkBytes() {
+		return Integer.getInteger("hw2.load.gunzipChunkBytes", 256 * 1024);
+	}
+
+	// dispatch writes grouped by the replica set owning their token (async mode only)
+	public static boolean groupByReplica() {
+		return Boolean.parseBoolean(System.getProperty("hw2.load.groupByReplica", "false"));
+	}
+
+	// a replica group is sent once it holds this many statements or waited replicaLingerMs
+	public static int replicaGroupSize() {
+		return Integer.getInteger("hw2.load.replicaGroupSize", 64);
+	}
+
+	public static long replicaLingerMillis() {
+		return Long.getLong("hw2.load.replicaLingerMs", 50);
+	}
+
+	// how often a sequential load saves its progress to <dataset>.checkpoint
+	public static long checkpointMillis() {
+		return Long.getLong("hw2.load.checkpointMs", 10_000);
+	}
+
+	// how often a load prints its progress
+	public static long reportMillis() {
+		return Long.getLong("hw2.load.reportMs", 5_000);
+	}
+
+	// max number of writes waiting for a response from the cluster (where the adaptive limit starts)
+	public static int maxInFlight() {
+		return Integer.getInteger("hw2.load.maxInFlight", 256);
+	}
+
+	// the write limiter: adaptive (AIMD) by default, starting at maxInFlight,
+	// or a fixed maxInFlight with -Dhw2.load.adaptive=false. it grows up to what the driver's single
+	// connection takes by default (1024 requests), past that the driver rejects requests as busy
+	public static ConcurrencyLimiter limiter() {
+		if (!Boolean.parseBoolean(System.getProperty("hw2.load.adaptive", "true")))
+			return ConcurrencyLimiter.fixed(maxInFlight());
+		return ConcurrencyLimiter.adaptive(
+				maxInFlight(),
+				Integer.getInteger("hw2.load.minInFlight", 8),
+				Integer.getInteger("hw2.load.maxLimit", 1024),
+				Integer.getInteger("hw2.load.limitIncrease", 8),
+				Double.parseDouble(System.getProperty("hw2.load.limitDecrease", "0.7")),
+				Long.getLong("hw2.load.targetP99Ms", 100),
+				Long.getLong("hw2.load.limitIntervalMs", 1000));
+	}
+
+	// multi-file loads: files loaded at the same time, each with an equal share of the limit
+	public static int parallelFiles() {
+		return Integer.getInteger("hw2.load.parallelFiles", 4);
+	}
+
+	// cooperative load of one file by several processes / hosts, see LeasedLoad
+	public static boolean leased() {
+		return Boolean.parseBoolean(System.getProperty("hw2.load.leased", "false"));
+	}
+
+	// the lease directory must be shared by all workers, <dataset>.leases by default. every dataset
+	// gets its own directory under hw2.load.leaseDir, as a multi-file load leases all of them there
+	public static LeasedLoad leasedLoad(DatasetLoader<?> loader, String pathDataset) {
+		String leaseDir = System.getProperty("hw2.load.leaseDir");
+		return new LeasedLoad(loader, pathDataset,
+				leaseDir == null ? pathDataset + ".leases" : Paths.get(leaseDir, Paths.get(pathDataset).getFileName().toString()).toString(),
+				Long.getLong("hw2.load.leaseRangeMB", 64) * 1024 * 1024,
+				Long.getLong("hw2.load.leaseTtlMs", 30_000),
+				System.getProperty("hw2.load.worker", ProcessHandle.current().pid() + "@" + hostName()));
+	}
+
+	// loadAll: share of the limit each dataset gets while both are waiting for permits
+	public static int itemsWeight() {
+		return Integer.getInteger("hw2.load.itemsWeight", 1);
+	}
+
+	public static int reviewsWeight() {
+		return Integer.getInteger("hw2.load.reviewsWeight", 2);
+	}
+
+	// requests per second for all loads of the process together (a batch is one request), 0 for no limit.
+	// e.g. a bit under the database tier's rate limit, so bursts are never rejected
+	public static TokenBucket rateLimit() {
+		double rate = Double.parseDouble(System.getProperty("hw2.load.rateLimit", "0"));
+		if (rate <= 0)
+			return null;
+		return new TokenBucket(rate, Integer.getInteger("hw2.load.rateBurst", (int) Math.max(1, rate / 10)));
+	}
+
+	// the permits paced by the bucket, as is without one
+	public static WritePermits paced(WritePermits permits, TokenBucket bucket, boolean shared) {
+		return bucket == null ? permits : new PacedPermits(permits, bucket, shared);
+	}
+
+	// failed writes are retried with exponential backoff before they go to the dead-letter file
+	public static RetryPolicy retryPolicy() {
+		return new RetryPolicy(
+				Integer.getInteger("hw2.load.maxAttempts", 5),
+				Long.getLong("hw2.load.retryBaseMs", 100),
+				Long.getLong("hw2.load.retryMaxMs", 10_000));
+	}
+
+	// retries get their own, smaller window next to maxInFlight
+	public static int maxRetriesInFlight() {
+		return Integer.getInteger("hw2.load.maxRetriesInFlight", 32);
+	}
+
+	// thread pool size for the THREADS mode
+	public static int threads() {
+		return Integer.getInteger("hw2.load.threads", 250);
+	}
+
+	// lines read but not yet processed by the pool (or virtual threads alive), in the blocking modes.
+	// hw2.load.maxQueuedBytes (if set) caps by line size instead of by count
+	public static QueueBudget queueBudget() {
+		Integer maxBytes = Integer.getInteger("hw2.load.maxQueuedBytes");
+		if (maxBytes != null)
+			return QueueBudget.bytes(maxBytes);
+		return QueueBudget.records(Integer.getInteger("hw2.load.maxQueuedRecords", 10000));
+	}
+
+	// group review writes into single-partition UNLOGGED batches (async mode only)
+	public static boolean batchReviews() {
+		return Boolean.parseBoolean(System.getProperty("hw2.load.batch", "true"));
+	}
+
+	// a partition's batch is sent once it holds this many rows...
+	public static int batchMaxStatements() {
+		return Integer.getInteger("hw2.load.batchMaxStatements", 16);
+	}
+
+	// ...or this many bytes of bound values (stay well below batch_size_fail_threshold)
+	public static int batchMaxBytes() {
+		return Integer.getInteger("hw2.load.batchMaxBytes", 32 * 1024);
+	}
+
+	// ...or once its first row has waited this long
+	public static long batchLingerMillis() {
+		return Long.getLong("hw2.load.batchLingerMs", 200);
+	}
+
+	// rows per page of userReviews / itemReviews, the next page is fetched while one is printed
+	public static int fetchSize() {
+		return Integer.getInteger("hw2.query.fetchSize", 500);
+	}
+
+	// cache of item() results: size (off by default, as a cached item hides changes made by others until it
+	// expires) and how long an entry is served without asking the db
+	public static ResultCache itemCache() {
+		long maxMB = Long.getLong("hw2.cache.itemsMB", 0);
+		if (maxMB <= 0)
+			return null;
+		return new ResultCache(maxMB * 1024 * 1024, Long.getLong("hw2.cache.itemsTtlMs", 60_000));
+	}
+
+	// external sort of a dataset (sortReviews): memory for one sorted run, files merged at once, spill dir
+	public static ExternalSorter sorter(String field) {
+		return new ExternalSorter(field,
+				Long.getLong("hw2.sort.maxMemoryMB", 256) * 1024 * 1024,
+				Integer.getInteger("hw2.sort.maxFanIn", 64),
+				Paths.get(System.getProperty("hw2.sort.tmpDir", System.getProperty("java.io.tmpdir"))));
+	}
+
+	private static String hostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "localhost";
+		}
+	}
+}
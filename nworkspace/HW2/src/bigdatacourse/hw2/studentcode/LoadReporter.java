@@ -0,0 +1,133 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// prints the progress of a load every few seconds - lines/s, rows/s, writes in flight, bytes read, eta
+// and the write latency percentiles of the last interval - and a summary over the whole load at the end
+public class LoadReporter implements AutoCloseable {
+
+	private final String					name;
+	private final long						totalBytes;
+	private final WritePermits				limiter;
+	private final ScheduledExecutorService	timer;
+	private final List<Supplier<String>>	details	= new CopyOnWriteArrayList<>();	// see watch()
+
+	private final LongAdder		lines		= new LongAdder();
+	private final LongAdder		bytes		= new LongAdder();
+	private final LongAdder		rows		= new LongAdder();
+	private final Recorder		latencies	= new Recorder(3);
+	private final Histogram		allLatencies	= new Histogram(3);
+	private Histogram			interval;
+
+	private final long			startNanos	= System.nanoTime();
+	private long				lastNanos	= startNanos;
+	private long				lastLines;
+	private long				lastRows;
+
+	// totalBytes is what's left of the file, for the eta, 0 if unknown
+	public LoadReporter(String name, long totalBytes, WritePermits limiter, long intervalMillis) {
+		this.name		= name;
+		this.totalBytes	= totalBytes;
+		this.limiter	= limiter;
+		this.timer		= Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "load-reporter");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// extra state of the load to print with every report, e.g. the pipeline's queue depths
+	public void watch(Supplier<String> detail) {
+		details.add(detail);
+	}
+
+	public void lineRead(long lineBytes) {
+		lines.increment();
+		bytes.add(lineBytes);
+	}
+
+	public void rowsWritten(int count) {
+		rows.add(count);
+	}
+
+	// called from the completion callback of every write request
+	public void recordLatency(long nanos) {
+		latencies.recordValue(nanos);
+	}
+
+	public synchronized void printSummary() {
+		collect();
+		double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+		System.out.println(String.format("%s: %,d lines, %,d rows in %.1fs (%,.0f lines/s, %,.0f rows/s, %s read), write %s",
+				name, lines.sum(), rows.sum(), seconds, lines.sum() / seconds, rows.sum() / seconds,
+				megabytes(bytes.sum()), percentiles(allLatencies)));
+	}
+
+	@Override
+	public void close() {
+		timer.shutdownNow();
+	}
+
+	private synchronized void report() {
+		collect();
+		long now			= System.nanoTime();
+		double seconds		= Math.max(1e-3, (now - lastNanos) / 1e9);
+		double elapsed		= Math.max(1e-3, (now - startNanos) / 1e9);
+		long lineCount		= lines.sum();
+		long rowCount		= rows.sum();
+		long byteCount		= bytes.sum();
+
+		String eta = "?";
+		if (byteCount > 0 && totalBytes > 0)
+			eta = duration((long) ((totalBytes - byteCount) * elapsed / byteCount));
+
+		String read = megabytes(byteCount);
+		if (totalBytes > 0)
+			read += String.format("/%s (%.1f%%)", megabytes(totalBytes), 100.0 * byteCount / totalBytes);
+
+		System.out.println(String.format("[%s %s] %,.0f lines/s, %,.0f rows/s, in flight %d/%d, read %s, eta %s, write %s",
+				name, duration((long) elapsed),
+				(lineCount - lastLines) / seconds, (rowCount - lastRows) / seconds,
+				limiter.inFlight(), limiter.limit(),
+				read, eta, percentiles(interval)));
+		for (Supplier<String> detail : details)
+			System.out.println("[" + name + "] " + detail.get());
+
+		lastNanos	= now;
+		lastLines	= lineCount;
+		lastRows	= rowCount;
+	}
+
+	// moves the latencies recorded since the last call into interval and the running total
+	private void collect() {
+		interval = latencies.getIntervalHistogram(interval);
+		allLatencies.add(interval);
+	}
+
+	private static String percentiles(Histogram h) {
+		if (h == null || h.getTotalCount() == 0)
+			return "p50/p99/p999 -";
+		return String.format("p50 %.1fms p99 %.1fms p999 %.1fms",
+				h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6, h.getValueAtPercentile(99.9) / 1e6);
+	}
+
+	private static String megabytes(long bytes) {
+		return String.format("%,.1fMB", bytes / (1024.0 * 1024.0));
+	}
+
+	private static String duration(long seconds) {
+		return seconds >= 3600
+				? String.format("%dh%02dm", seconds / 3600, (seconds % 3600) / 60)
+				: String.format("%dm%02ds", seconds / 60, seconds % 60);
+	}
+}
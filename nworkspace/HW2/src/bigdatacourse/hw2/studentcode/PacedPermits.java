@@ -0,0 +1,85 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// write permits that also take a token of a TokenBucket for every request, so the load stays at
+// the bucket's rate (e.g. under the database's request rate limit) whatever the concurrency allows.
+// the bucket may be shared by several loads, each one counts the requests it sent itself
+public class PacedPermits implements WritePermits {
+
+	private final WritePermits	permits;
+	private final TokenBucket	bucket;
+	private final boolean		shared;
+	private final LongAdder		sent		= new LongAdder();
+	private final long			startNanos	= System.nanoTime();
+	private long				lastNanos	= startNanos;
+	private long				lastSent;
+
+	public PacedPermits(WritePermits permits, TokenBucket bucket, boolean shared) {
+		this.permits	= permits;
+		this.bucket		= bucket;
+		this.shared		= shared;
+	}
+
+	// the permit first: a token taken while waiting for a permit would be spent late, and all the
+	// waiters' tokens at once as soon as the writes get faster
+	@Override
+	public void acquire() throws InterruptedException {
+		permits.acquire();
+		try {
+			bucket.acquire();
+		} catch (InterruptedException e) {
+			permits.release(0, e);
+			throw e;
+		}
+		sent.increment();
+	}
+
+	// a token for a request sent without a permit, i.e. a retry: returns the nanos to wait before sending
+	// it, so a thread that mustn't block can schedule the request instead of sleeping
+	public long reserve() {
+		sent.increment();
+		return bucket.reserve();
+	}
+
+	@Override
+	public void release(long latencyNanos, Throwable error) {
+		permits.release(latencyNanos, error);
+	}
+
+	@Override
+	public int inFlight() {
+		return permits.inFlight();
+	}
+
+	@Override
+	public int limit() {
+		return permits.limit();
+	}
+
+	@Override
+	public long lastP99Nanos() {
+		return permits.lastP99Nanos();
+	}
+
+	// achieved vs target rate since the last report, for LoadReporter.watch
+	public synchronized String report() {
+		long now	= System.nanoTime();
+		long count	= sent.sum();
+		String line	= rate(count - lastSent, now - lastNanos);
+		lastNanos	= now;
+		lastSent	= count;
+		return line;
+	}
+
+	// the same over the whole load
+	public String summary() {
+		return rate(sent.sum(), System.nanoTime() - startNanos);
+	}
+
+	private String rate(long requests, long nanos) {
+		double achieved = requests / Math.max(1e-3, nanos / 1e9);
+		return String.format("requests %,.0f/s of %,.0f/s target%s (%.1f%%)",
+				achieved, bucket.rate(), shared ? " shared with other loads" : "", 100 * achieved / bucket.rate());
+	}
+}
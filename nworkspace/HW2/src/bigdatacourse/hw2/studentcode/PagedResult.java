@@ -0,0 +1,85 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+// the rows of a query, formatted one at a time while they are iterated instead of all up front.
+// the rows come in pages of the statement's page size, and the next page is requested as soon as
+// the current one arrives, so it is (usually) there by the time the current one is consumed.
+// every iterator() runs the query again
+public class PagedResult implements Iterable<String> {
+
+	private final CqlSession			session;
+	private final Statement<?>			statement;
+	private final Function<Row, String>	format;
+	private final IntConsumer			done;
+
+	// done gets the number of rows once an iterator reached the end
+	public PagedResult(CqlSession session, Statement<?> statement, Function<Row, String> format, IntConsumer done) {
+		this.session	= session;
+		this.statement	= statement;
+		this.format		= format;
+		this.done		= done;
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Pages(session.executeAsync(statement).toCompletableFuture());
+	}
+
+	private class Pages implements Iterator<String> {
+
+		private CompletableFuture<AsyncResultSet>	next;		// the page after the current one, null if none
+		private Iterator<Row>						rows;		// of the current page
+		private int									count;
+		private boolean								ended;
+
+		Pages(CompletableFuture<AsyncResultSet> first) {
+			this.next = first;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (rows == null || !rows.hasNext()) {
+				if (next == null) {
+					if (!ended) {
+						ended = true;
+						done.accept(count);
+					}
+					return false;
+				}
+				AsyncResultSet page = await(next);
+				// ask for the page after this one right away, it loads while this one is consumed
+				next = page.hasMorePages() ? page.fetchNextPage().toCompletableFuture() : null;
+				rows = page.currentPage().iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			count++;
+			return format.apply(rows.next());
+		}
+
+		private AsyncResultSet await(CompletableFuture<AsyncResultSet> page) {
+			try {
+				return page.join();
+			} catch (CompletionException e) {
+				Throwable cause = RetryPolicy.unwrap(e);
+				throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BatchType;
+import com.datastax.oss.driver.api.core.cql.BatchableStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+// groups inserts by (table, partition key) and sends each group as one
+// single-partition UNLOGGED batch - one round trip and one mutation on the replica,
+// still applied atomically since every row lives in the same partition.
+// a group is flushed when it reaches maxStatements / maxBytes or gets older than the linger time
+public class PartitionBatcher extends GroupingStage {
+
+	public PartitionBatcher(WriteStage next, int maxStatements, int maxBytes, long lingerMillis) {
+		super(next, maxStatements, maxBytes, lingerMillis);
+	}
+
+	// table + serialized partition key columns. the unprepared inserts of the offline sinks (see
+	// InsertStatement) are batched the same way, their partition key is always the first value
+	@Override
+	protected Object key(Statement<?> statement) {
+		if (statement instanceof SimpleStatement) {
+			SimpleStatement simple = (SimpleStatement) statement;
+			if (simple.getPositionalValues().isEmpty())
+				return null;
+			return List.of(simple.getQuery(), String.valueOf(simple.getPositionalValues().get(0)));
+		}
+		if (!(statement instanceof BoundStatement))
+			return null;
+
+		BoundStatement bound		= (BoundStatement) statement;
+		PreparedStatement prepared	= bound.getPreparedStatement();
+		List<Object> key			= new ArrayList<>();
+		key.add(prepared.getQuery());
+		for (int i : prepared.getPartitionKeyIndices())
+			key.add(bound.getBytesUnsafe(i));
+		return key;
+	}
+
+	@Override
+	protected void send(Group group) throws InterruptedException {
+		if (group.statements.size() == 1) {
+			group.completeWith(next.submit(group.statements.get(0)));
+			return;
+		}
+
+		List<BatchableStatement<?>> statements = new ArrayList<>();
+		for (Statement<?> statement : group.statements)
+			statements.add((BatchableStatement<?>) statement);
+		group.completeWith(next.submit(BatchStatement.newInstance(BatchType.UNLOGGED, statements)));
+	}
+}
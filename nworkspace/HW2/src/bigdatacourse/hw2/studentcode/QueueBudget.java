@@ -0,0 +1,39 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.Semaphore;
+
+// caps what the reader may hand to the worker pool but the workers haven't finished yet,
+// counted either in records or in (approximate) bytes of line text. the reader blocks
+// in acquire() once the cap is reached, so a slow cluster can't pile the rest of the file on the heap
+public class QueueBudget {
+
+	private final Semaphore	permits;
+	private final int		capacity;
+	private final boolean	countBytes;
+
+	private QueueBudget(int capacity, boolean countBytes) {
+		this.capacity	= capacity;
+		this.countBytes	= countBytes;
+		this.permits	= new Semaphore(capacity);
+	}
+
+	public static QueueBudget records(int maxRecords) {
+		return new QueueBudget(maxRecords, false);
+	}
+
+	public static QueueBudget bytes(int maxBytes) {
+		return new QueueBudget(maxBytes, true);
+	}
+
+	// returns the cost to hand back to release() once the line is done
+	public int acquire(String line) throws InterruptedException {
+		// compact strings keep the latin-1 dataset at ~1 byte per char, a huge line takes the whole budget
+		int cost = countBytes ? Math.min(Math.max(1, line.length()), capacity) : 1;
+		permits.acquire(cost);
+		return cost;
+	}
+
+	public void release(int cost) {
+		permits.release(cost);
+	}
+}
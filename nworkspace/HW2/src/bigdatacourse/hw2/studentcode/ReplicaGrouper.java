@@ -0,0 +1,54 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.metadata.TokenMap;
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+// reorders writes so that statements owned by the same replica set are dispatched back to back:
+// pending statements are grouped by the replicas of their token (from the driver's token map)
+// and each group is sent in one go, so the token-aware coordinators mostly handle local writes
+// and see runs of requests for the ranges they own instead of a random mix
+public class ReplicaGrouper extends GroupingStage {
+
+	private final CqlSession	session;
+
+	public ReplicaGrouper(WriteStage next, CqlSession session, int maxStatements, long lingerMillis) {
+		super(next, maxStatements, Integer.MAX_VALUE, lingerMillis);
+		this.session = session;
+	}
+
+	// the replica set, null (pass through) if the token map or the routing key isn't known
+	@Override
+	protected Object key(Statement<?> statement) {
+		Optional<TokenMap> tokenMap = session.getMetadata().getTokenMap();
+		ByteBuffer routingKey		= statement.getRoutingKey();
+		if (tokenMap.isEmpty() || routingKey == null)
+			return null;
+
+		CqlIdentifier keyspace = statement.getRoutingKeyspace() != null
+				? statement.getRoutingKeyspace()
+				: session.getKeyspace().orElse(null);
+		if (keyspace == null)
+			return null;
+		return tokenMap.get().getReplicas(keyspace, routingKey);
+	}
+
+	// every statement stays its own request, only the order changes
+	@Override
+	protected void send(Group group) throws InterruptedException {
+		for (int i = 0; i < group.statements.size(); i++) {
+			CompletableFuture<Void> done = group.futures.get(i);
+			next.submit(group.statements.get(i)).whenComplete((rs, error) -> {
+				if (error == null)
+					done.complete(null);
+				else
+					done.completeExceptionally(error);
+			});
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// formatted query results by key, bounded by (approximate) bytes with least recently used eviction,
+// and every entry expires ttl after it was stored so rows changed by someone else show up eventually
+public class ResultCache {
+
+	// per entry: the map entry, the key / value objects and their arrays
+	private static final int	ENTRY_OVERHEAD	= 128;
+
+	private final long		maxBytes;
+	private final long		ttlNanos;
+	private long			bytes;
+
+	// access order: iteration starts at the least recently used entry
+	private final LinkedHashMap<String, Entry>	entries	= new LinkedHashMap<>(16, 0.75f, true);
+
+	private final LongAdder	hits		= new LongAdder();
+	private final LongAdder	misses		= new LongAdder();
+	private final LongAdder	evictions	= new LongAdder();
+	private final LongAdder	expired		= new LongAdder();
+
+	public ResultCache(long maxBytes, long ttlMillis) {
+		this.maxBytes	= maxBytes;
+		this.ttlNanos	= TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	// null if it isn't cached (or not anymore)
+	public synchronized String get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && System.nanoTime() - entry.storedNanos > ttlNanos) {
+			remove(key);
+			expired.increment();
+			entry = null;
+		}
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry.value;
+	}
+
+	public synchronized void put(String key, String value) {
+		Entry entry = new Entry(value, size(key, value));
+		if (entry.bytes > maxBytes)
+			return;
+		remove(key);
+		entries.put(key, entry);
+		bytes += entry.bytes;
+
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (bytes > maxBytes) {
+			bytes -= eldest.next().getValue().bytes;
+			eldest.remove();
+			evictions.increment();
+		}
+	}
+
+	// e.g. after the rows were reloaded
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized String stats() {
+		long lookups = hits.sum() + misses.sum();
+		return String.format("%,d hits, %,d misses (%.1f%% hit rate), %,d evicted, %,d expired, %,d entries in %,.1fMB of %,.1fMB",
+				hits.sum(), misses.sum(), lookups == 0 ? 0 : 100.0 * hits.sum() / lookups, evictions.sum(), expired.sum(),
+				entries.size(), bytes / (1024.0 * 1024.0), maxBytes / (1024.0 * 1024.0));
+	}
+
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null)
+			bytes -= old.bytes;
+	}
+
+	// 2 bytes a char is the worst case, the dataset's latin-1 text takes 1 with compact strings
+	private static long size(String key, String value) {
+		return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+	}
+
+	private static class Entry {
+		final String	value;
+		final long		bytes;
+		final long		storedNanos	= System.nanoTime();
+
+		Entry(String value, long bytes) {
+			this.value	= value;
+			this.bytes	= bytes;
+		}
+	}
+}
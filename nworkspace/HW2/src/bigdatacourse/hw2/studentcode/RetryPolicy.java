@@ -0,0 +1,50 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.datastax.oss.driver.api.core.DriverException;
+import com.datastax.oss.driver.api.core.InvalidKeyspaceException;
+import com.datastax.oss.driver.api.core.servererrors.QueryValidationException;
+
+// which failed writes to send again and how long to wait before each attempt.
+// all our inserts are idempotent, so re-sending one is always safe
+public class RetryPolicy {
+
+	private final int	maxAttempts;
+	private final long	baseDelayMillis;
+	private final long	maxDelayMillis;
+
+	public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+		this.maxAttempts		= maxAttempts;
+		this.baseDelayMillis	= baseDelayMillis;
+		this.maxDelayMillis		= maxDelayMillis;
+	}
+
+	// total attempts including the first one
+	public int maxAttempts() {
+		return maxAttempts;
+	}
+
+	// timeouts, overload and unavailable nodes may pass later, bad queries or values never will
+	public boolean isRetryable(Throwable error) {
+		error = unwrap(error);
+		return error instanceof DriverException
+				&& !(error instanceof QueryValidationException)
+				&& !(error instanceof InvalidKeyspaceException);
+	}
+
+	// exponential backoff with "equal jitter": half of the delay is fixed, the other half random,
+	// so writes that failed together (e.g. on a throttling burst) don't come back together
+	public long backoffMillis(int attempt) {
+		long delay	= Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+		long half	= delay / 2;
+		return half + ThreadLocalRandom.current().nextLong(half + 1);
+	}
+
+	public static Throwable unwrap(Throwable error) {
+		while (error instanceof CompletionException && error.getCause() != null)
+			error = error.getCause();
+		return error;
+	}
+}
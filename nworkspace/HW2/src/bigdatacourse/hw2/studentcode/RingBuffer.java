@@ -0,0 +1,123 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// bounded lock-free queue between two pipeline stages, on a preallocated array of slots.
+// every slot has a sequence number that tells producers and consumers whose turn it is, so any
+// number of threads can put and take with a single CAS and no lock (D. Vyukov's bounded MPMC queue).
+// a thread that finds it full / empty spins for a while, then parks for short periods
+public class RingBuffer<T> {
+
+	// spinning only helps if the other side runs on another core
+	private static final int	SPINS		= Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0;
+	private static final long	PARK_NANOS	= 50_000;
+
+	private final int						mask;
+	private final AtomicReferenceArray<T>	items;
+	private final AtomicLongArray			sequences;
+	private final AtomicLong				head		= new AtomicLong();	// next slot to take
+	private final AtomicLong				tail		= new AtomicLong();	// next slot to put
+	private volatile boolean				closed;
+
+	// capacity is rounded up to a power of two
+	public RingBuffer(int capacity) {
+		int size		= Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.mask		= size - 1;
+		this.items		= new AtomicReferenceArray<>(size);
+		this.sequences	= new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	// false if the buffer is full
+	public boolean offer(T item) {
+		long pos = tail.get();
+		while (true) {
+			int slot	= (int) (pos & mask);
+			long diff	= sequences.get(slot) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					items.lazySet(slot, item);
+					sequences.set(slot, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	// null if the buffer is empty
+	public T poll() {
+		long pos = head.get();
+		while (true) {
+			int slot	= (int) (pos & mask);
+			long diff	= sequences.get(slot) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					T item = items.get(slot);
+					items.lazySet(slot, null);
+					sequences.set(slot, pos + mask + 1);
+					return item;
+				}
+				pos = head.get();
+			} else if (diff < 0) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	// waits for a free slot, fails once the consumer side closed the buffer
+	public void put(T item) throws InterruptedException {
+		for (int idle = 0; !offer(item); idle++) {
+			if (closed)
+				throw new IllegalStateException("pipeline stopped");
+			idle(idle);
+		}
+	}
+
+	// waits for an item, null once the buffer is closed and drained
+	public T take() throws InterruptedException {
+		for (int idle = 0; ; idle++) {
+			T item = poll();
+			if (item != null)
+				return item;
+			// closed is set after the last put, so one more poll sees everything
+			if (closed)
+				return poll();
+			idle(idle);
+		}
+	}
+
+	// no more puts: by the producers once they are done, or by a failing consumer
+	public void close() {
+		closed = true;
+	}
+
+	// items waiting, approximate while threads are busy with it
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	private static void idle(int idle) throws InterruptedException {
+		if (idle < SPINS) {
+			Thread.onSpinWait();
+			return;
+		}
+		LockSupport.parkNanos(PARK_NANOS);
+		if (Thread.interrupted())
+			throw new InterruptedException();
+	}
+}
@@ -0,0 +1,59 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+
+// several dataset loads at once, writing through one sink, one limiter and one rate limit. every load
+// gets a weighted lane of the limiter, so a big file can't take the permits from the others while they
+// wait, and whatever loads are left share the whole limit. each load still reports its own progress
+public class SharedLoad {
+
+	private final List<DatasetLoader<?>>	loaders	= new ArrayList<>();
+	private final List<Integer>				weights	= new ArrayList<>();
+
+	public SharedLoad add(DatasetLoader<?> loader, int weight) {
+		loaders.add(loader);
+		weights.add(weight);
+		return this;
+	}
+
+	// runs the loads in the order they were added, at most parallel of them at a time. a failed load
+	// doesn't stop the others, the first failure is thrown once all of them are done
+	public void run(CqlSession session, int parallel, boolean resume) throws Exception {
+		ConcurrencyLimiter limiter	= LoadOptions.limiter();
+		TokenBucket rate			= LoadOptions.rateLimit();
+		ExecutorService executor	= Executors.newFixedThreadPool(Math.max(1, Math.min(parallel, loaders.size())));
+		try (WriteSink sink = LoadOptions.sink(session)) {
+			List<Future<?>> loads = new ArrayList<>();
+			for (int i = 0; i < loaders.size(); i++) {
+				DatasetLoader<?> loader	= loaders.get(i);
+				int weight				= weights.get(i);
+				loads.add(executor.submit(() -> {
+					// the lane is taken when the load starts, a queued load doesn't count yet
+					loader.share(LoadOptions.paced(limiter.lane(weight), rate, true), sink).load(resume);
+					return null;
+				}));
+			}
+
+			Exception failure = null;
+			for (Future<?> load : loads) {
+				try {
+					load.get();
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+			if (failure != null)
+				throw failure;
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
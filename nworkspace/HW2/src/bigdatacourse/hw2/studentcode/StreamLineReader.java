@@ -0,0 +1,70 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// sequential utf-8 line reader that, unlike BufferedReader, knows the byte offset of every line
+public class StreamLineReader {
+
+	private final InputStream	in;
+	private final long			offset;
+	private final long			until;
+
+	// offset is the position of the stream's first byte within the file
+	public StreamLineReader(InputStream in, long offset) {
+		this(in, offset, Long.MAX_VALUE);
+	}
+
+	// stops at the position until, which should be the start of a line
+	public StreamLineReader(InputStream in, long offset, long until) {
+		this.in		= in;
+		this.offset	= offset;
+		this.until	= until;
+	}
+
+	public void read(LineHandler handler) throws Exception {
+		byte[] buf	= new byte[64 * 1024];
+		byte[] line	= new byte[8 * 1024];
+		int length	= 0;
+		long start	= offset;
+		long pos	= offset;
+
+		int n;
+		while (pos < until && (n = fill(buf, (int) Math.min(buf.length, until - pos))) > 0) {
+			for (int i = 0; i < n; i++) {
+				byte b = buf[i];
+				pos++;
+				if (b != '\n') {
+					if (length == line.length) {
+						byte[] bigger = new byte[line.length * 2];
+						System.arraycopy(line, 0, bigger, 0, length);
+						line = bigger;
+					}
+					line[length++] = b;
+					continue;
+				}
+				emit(handler, line, length, start, pos);
+				length	= 0;
+				start	= pos;
+			}
+		}
+		// last line without a trailing '\n'
+		emit(handler, line, length, start, pos);
+	}
+
+	private int fill(byte[] buf, int length) throws IOException {
+		int n;
+		do {
+			n = in.read(buf, 0, length);
+		} while (n == 0);
+		return n;
+	}
+
+	private static void emit(LineHandler handler, byte[] line, int length, long start, long end) throws Exception {
+		if (length > 0 && line[length - 1] == '\r')
+			length--;
+		if (length > 0)
+			handler.accept(new String(line, 0, length, StandardCharsets.UTF_8), start, end);
+	}
+}
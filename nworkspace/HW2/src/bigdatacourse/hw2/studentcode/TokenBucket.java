@@ -0,0 +1,41 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.TimeUnit;
+
+// paces requests to a fixed rate: tokens refill at opsPerSecond up to burst, and every request takes one.
+// a caller that finds the bucket empty reserves the next token (the count goes below zero) and sleeps
+// until it is due, so waiting callers are spread evenly over time instead of bursting when tokens appear
+public class TokenBucket {
+
+	private final double	opsPerSecond;
+	private final double	tokensPerNano;
+	private final double	burst;
+	private double			tokens;
+	private long			lastNanos	= System.nanoTime();
+
+	public TokenBucket(double opsPerSecond, int burst) {
+		this.opsPerSecond	= opsPerSecond;
+		this.tokensPerNano	= opsPerSecond / 1e9;
+		this.burst			= Math.max(1, burst);
+		this.tokens			= this.burst;
+	}
+
+	public void acquire() throws InterruptedException {
+		long waitNanos = reserve();
+		if (waitNanos > 0)
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+	}
+
+	// takes a token without waiting for it, the caller sends its request after the returned nanos
+	public synchronized long reserve() {
+		long now	= System.nanoTime();
+		tokens		= Math.min(burst, tokens + (now - lastNanos) * tokensPerNano);
+		lastNanos	= now;
+		tokens		-= 1;
+		return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+	}
+
+	public double rate() {
+		return opsPerSecond;
+	}
+}
@@ -0,0 +1,17 @@
+package bigdatacourse.hw2.studentcode;
+
+// what the write paths need from a limiter: a ConcurrencyLimiter, or one lane of it shared with other loads
+public interface WritePermits {
+
+	void acquire() throws InterruptedException;
+
+	// error is null for a successful write
+	void release(long latencyNanos, Throwable error);
+
+	int inFlight();
+
+	int limit();
+
+	// p99 write latency of the last finished interval, 0 when not adaptive
+	long lastP99Nanos();
+}
@@ -0,0 +1,18 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+// where the loaders' statements end up: the cluster, or a stand-in for measuring
+// the read / parse side alone and for running the loaders without access to Astra
+public interface WriteSink extends AutoCloseable {
+
+	CompletionStage<?> write(Statement<?> statement);
+
+	// called once the load is done
+	@Override
+	default void close() throws IOException {
+	}
+}
@@ -0,0 +1,16 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.CompletionStage;
+
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+// a step of the async write path (batching, grouping, the window itself).
+// stages are chained, each one hands its output to the next until it reaches the WriteWindow
+public interface WriteStage {
+
+	// the returned stage completes once the statement was written (or failed for good)
+	CompletionStage<?> submit(Statement<?> statement) throws InterruptedException;
+
+	// pushes anything buffered to the next stage
+	void flush() throws InterruptedException;
+}
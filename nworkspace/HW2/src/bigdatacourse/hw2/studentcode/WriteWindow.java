@@ -0,0 +1,141 @@
+package bigdatacourse.hw2.studentcode;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.oss.driver.api.core.cql.Statement;
+
+// bounded window of async writes: submit() blocks the caller while the window is full
+// and a permit is handed back from the completion callback, so the reader thread
+// drives the pipeline directly without a worker pool in between.
+// failed writes are retried with backoff outside of the window, under their own smaller
+// limit, so a burst of timeouts doesn't take the permits away from fresh writes. with a rate limit
+// every retry takes a token too, it is a request like any other
+public class WriteWindow implements WriteStage, AutoCloseable {
+
+	private static final long	RETRY_POLL_MILLIS	= 10;
+
+	private final WriteSink					sink;
+	private final WritePermits				limiter;
+	private final PacedPermits				pacing;		// null without a rate limit
+	private final RetryPolicy				retry;
+	private final Semaphore					retryPermits;
+	private final ScheduledExecutorService	scheduler;
+	private final LoadReporter				reporter;
+
+	private final LongAdder		retried		= new LongAdder();
+	private final LongAdder		failed		= new LongAdder();
+	private int					outstanding;	// submitted, not completed yet (retries included)
+
+	public WriteWindow(WriteSink sink, WritePermits limiter, RetryPolicy retry, int maxRetriesInFlight, LoadReporter reporter) {
+		this.sink			= sink;
+		this.limiter		= limiter;
+		this.pacing			= limiter instanceof PacedPermits ? (PacedPermits) limiter : null;
+		this.retry			= retry;
+		this.retryPermits	= new Semaphore(maxRetriesInFlight);
+		this.reporter		= reporter;
+		this.scheduler		= Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "write-retries");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	// the returned stage completes once the write succeeded or ran out of attempts
+	@Override
+	public CompletionStage<?> submit(Statement<?> statement) throws InterruptedException {
+		limiter.acquire();
+		synchronized (this) {
+			outstanding++;
+		}
+
+		CompletableFuture<Object> result = new CompletableFuture<>();
+		result.whenComplete((rs, error) -> completed());
+
+		long start = System.nanoTime();
+		sink.write(statement).whenComplete((rs, error) -> {
+			long latency = System.nanoTime() - start;
+			limiter.release(latency, error);
+			if (error == null) {
+				reporter.recordLatency(latency);
+				result.complete(rs);
+			} else {
+				retryOrFail(statement, 1, error, result);
+			}
+		});
+		return result;
+	}
+
+	// nothing is buffered here, see drain() to wait for the writes
+	@Override
+	public void flush() {
+	}
+
+	// waits until every submitted write has completed, retries included
+	public synchronized void drain() throws InterruptedException {
+		while (outstanding > 0)
+			wait();
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	public long retried() {
+		return retried.sum();
+	}
+
+	public long failed() {
+		return failed.sum();
+	}
+
+	private void retryOrFail(Statement<?> statement, int attempts, Throwable error, CompletableFuture<Object> result) {
+		if (attempts >= retry.maxAttempts() || !retry.isRetryable(error)) {
+			failed.increment();
+			result.completeExceptionally(RetryPolicy.unwrap(error));
+			return;
+		}
+
+		retried.increment();
+		scheduler.schedule(() -> resend(statement, attempts + 1, result), retry.backoffMillis(attempts), TimeUnit.MILLISECONDS);
+	}
+
+	private void resend(Statement<?> statement, int attempt, CompletableFuture<Object> result) {
+		// never block the scheduler thread, check again a bit later
+		if (!retryPermits.tryAcquire()) {
+			scheduler.schedule(() -> resend(statement, attempt, result), RETRY_POLL_MILLIS, TimeUnit.MILLISECONDS);
+			return;
+		}
+
+		long waitNanos = pacing != null ? pacing.reserve() : 0;
+		if (waitNanos > 0)
+			scheduler.schedule(() -> send(statement, attempt, result), waitNanos, TimeUnit.NANOSECONDS);
+		else
+			send(statement, attempt, result);
+	}
+
+	// with a retry permit (and token) taken
+	private void send(Statement<?> statement, int attempt, CompletableFuture<Object> result) {
+		long start = System.nanoTime();
+		sink.write(statement).whenComplete((rs, error) -> {
+			retryPermits.release();
+			if (error == null) {
+				reporter.recordLatency(System.nanoTime() - start);
+				result.complete(rs);
+			} else {
+				retryOrFail(statement, attempt, error, result);
+			}
+		});
+	}
+
+	private synchronized void completed() {
+		if (--outstanding == 0)
+			notifyAll();
+	}
+}